@@ -56,6 +56,7 @@ public class ACSDeploymentBuilder extends Builder implements SimpleBuildStep {
         this.context.executeCommands();
 
         if (context.getLastCommandState().isError()) {
+            context.discardCachedMetadata(listener.getLogger());
             run.setResult(Result.FAILURE);
             // NB: The perform(AbstractBuild<?,?>, Launcher, BuildListener) method inherited from
             //     BuildStepCompatibilityLayer will delegate the call to SimpleBuildStep#perform when possible,
@@ -7,19 +7,10 @@
 package com.microsoft.jenkins.acs;
 
 import com.cloudbees.jenkins.plugins.sshcredentials.SSHUserPrivateKey;
-import com.cloudbees.jenkins.plugins.sshcredentials.impl.BasicSSHUserPrivateKey;
-import com.cloudbees.plugins.credentials.CredentialsMatchers;
-import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
-import com.cloudbees.plugins.credentials.domains.DomainRequirement;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableSet;
-import com.microsoft.azure.PagedList;
-import com.microsoft.azure.management.Azure;
-import com.microsoft.azure.management.containerservice.ContainerService;
 import com.microsoft.azure.management.containerservice.ContainerServiceOrchestratorTypes;
-import com.microsoft.azure.management.resources.GenericResource;
-import com.microsoft.azure.management.resources.ResourceGroup;
 import com.microsoft.azure.util.AzureBaseCredentials;
 import com.microsoft.azure.util.AzureCredentialUtil;
 import com.microsoft.jenkins.acs.commands.AKSDeploymentCommand;
@@ -30,14 +21,17 @@ import com.microsoft.jenkins.acs.commands.KubernetesDeploymentCommand;
 import com.microsoft.jenkins.acs.commands.MarathonDeploymentCommand;
 import com.microsoft.jenkins.acs.commands.SwarmDeploymentCommand;
 import com.microsoft.jenkins.acs.util.AzureHelper;
+import com.microsoft.jenkins.acs.util.AzureInventoryCache;
 import com.microsoft.jenkins.acs.util.Constants;
+import com.microsoft.jenkins.acs.util.ContainerServiceMetadataCache;
 import com.microsoft.jenkins.acs.util.DeployHelper;
+import com.microsoft.jenkins.acs.util.SshCredentialsIndex;
 import com.microsoft.jenkins.azurecommons.JobContext;
 import com.microsoft.jenkins.azurecommons.command.BaseCommandContext;
 import com.microsoft.jenkins.azurecommons.command.CommandService;
 import com.microsoft.jenkins.azurecommons.command.IBaseCommandData;
 import com.microsoft.jenkins.azurecommons.command.ICommand;
-import com.microsoft.jenkins.azurecommons.remote.SSHClient;
+import com.microsoft.jenkins.azurecommons.core.credentials.TokenCredentialData;
 import com.microsoft.jenkins.kubernetes.credentials.ResolvedDockerRegistryEndpoint;
 import hudson.Extension;
 import hudson.FilePath;
@@ -48,7 +42,6 @@ import hudson.model.TaskListener;
 import hudson.security.ACL;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
-import jenkins.model.Jenkins;
 import jenkins.tasks.SimpleBuildStep;
 import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.plugins.docker.commons.credentials.DockerRegistryEndpoint;
@@ -64,8 +57,8 @@ import org.kohsuke.stapler.QueryParameter;
 
 import javax.annotation.Nonnull;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
@@ -87,14 +80,19 @@ public class ACSDeploymentContext extends BaseCommandContext
 
     private boolean enableConfigSubstitution;
     private boolean swarmRemoveContainersFirst;
+    private boolean compactSecurityRules;
 
     private String secretNamespace;
     private String secretName;
     private String dcosDockerCredentialsPath;
     private boolean dcosDockerCredenditalsPathShared;
+    private String dcosMarathonGroupId;
+    private String dcosUpdateStrategy;
+    private int dcosDeploymentTimeoutMinutes;
     private List<DockerRegistryEndpoint> containerRegistryCredentials;
 
     private transient String mgmtFQDN;
+    private transient String cachedMetadataSubscriptionId;
     private transient ContainerServiceOrchestratorTypes orchestratorType;
     private transient SSHUserPrivateKey sshCredentials;
 
@@ -185,6 +183,32 @@ public class ACSDeploymentContext extends BaseCommandContext
         this.mgmtFQDN = fqdn;
     }
 
+    @Override
+    public void setCachedMetadataSubscriptionId(String subscriptionId) {
+        this.cachedMetadataSubscriptionId = subscriptionId;
+    }
+
+    /**
+     * Drop the cached management FQDN of the container service if the one of this deployment was read from it, as the
+     * deployment may have failed to reach a master whose FQDN or admin user changed since then. The recorded state of
+     * the agent network resources is kept.
+     */
+    public void discardCachedMetadata(PrintStream logger) {
+        if (cachedMetadataSubscriptionId != null) {
+            discardCachedMetadata(ContainerServiceMetadataCache.get(), logger);
+        }
+    }
+
+    @VisibleForTesting
+    void discardCachedMetadata(ContainerServiceMetadataCache metadataCache, PrintStream logger) {
+        if (cachedMetadataSubscriptionId == null) {
+            return;
+        }
+        logger.println(Messages.ACSDeploymentContext_cachedMetadataDiscarded(getContainerServiceName()));
+        metadataCache.invalidate(cachedMetadataSubscriptionId, getResourceGroupName(), getContainerServiceName());
+        cachedMetadataSubscriptionId = null;
+    }
+
     @Override
     public String getResourceGroupName() {
         return this.resourceGroupName;
@@ -269,6 +293,16 @@ public class ACSDeploymentContext extends BaseCommandContext
         this.swarmRemoveContainersFirst = swarmRemoveContainersFirst;
     }
 
+    @Override
+    public boolean isCompactSecurityRules() {
+        return compactSecurityRules;
+    }
+
+    @DataBoundSetter
+    public void setCompactSecurityRules(boolean compactSecurityRules) {
+        this.compactSecurityRules = compactSecurityRules;
+    }
+
     @Override
     public boolean isEnableConfigSubstitution() {
         return enableConfigSubstitution;
@@ -309,6 +343,46 @@ public class ACSDeploymentContext extends BaseCommandContext
         this.dcosDockerCredenditalsPathShared = dcosDockerCredenditalsPathShared;
     }
 
+    @Override
+    public String getDcosMarathonGroupId() {
+        return dcosMarathonGroupId;
+    }
+
+    @DataBoundSetter
+    public void setDcosMarathonGroupId(String dcosMarathonGroupId) {
+        this.dcosMarathonGroupId = StringUtils.trimToEmpty(dcosMarathonGroupId);
+    }
+
+    @Override
+    public String getDcosUpdateStrategy() {
+        if (StringUtils.isBlank(dcosUpdateStrategy)) {
+            return getDescriptor().getDefaultDcosUpdateStrategy();
+        }
+        return dcosUpdateStrategy;
+    }
+
+    @DataBoundSetter
+    public void setDcosUpdateStrategy(String dcosUpdateStrategy) {
+        if (getDescriptor().getDefaultDcosUpdateStrategy().equals(dcosUpdateStrategy)) {
+            this.dcosUpdateStrategy = null;
+        } else {
+            this.dcosUpdateStrategy = StringUtils.trimToEmpty(dcosUpdateStrategy);
+        }
+    }
+
+    /**
+     * @return how long in minutes to wait for the Marathon deployments to finish, non-positive value skips waiting
+     */
+    @Override
+    public int getDcosDeploymentTimeoutMinutes() {
+        return dcosDeploymentTimeoutMinutes;
+    }
+
+    @DataBoundSetter
+    public void setDcosDeploymentTimeoutMinutes(int dcosDeploymentTimeoutMinutes) {
+        this.dcosDeploymentTimeoutMinutes = dcosDeploymentTimeoutMinutes;
+    }
+
     public List<DockerRegistryEndpoint> getContainerRegistryCredentials() {
         if (containerRegistryCredentials == null) {
             return new ArrayList<>(0);
@@ -373,19 +447,12 @@ public class ACSDeploymentContext extends BaseCommandContext
         super.configure(jobContext, commandService);
     }
 
-    private static SSHUserPrivateKey getSshCredentials(String id) {
+    static SSHUserPrivateKey getSshCredentials(String id) {
         if (StringUtils.isBlank(id)) {
             // We don't need SSH credentials in AKS deployment
             return null;
         }
-        SSHUserPrivateKey creds = CredentialsMatchers.firstOrNull(
-                CredentialsProvider.lookupCredentials(
-                        BasicSSHUserPrivateKey.class,
-                        Jenkins.getInstance(),
-                        ACL.SYSTEM,
-                        Collections.<DomainRequirement>emptyList()),
-                CredentialsMatchers.withId(id));
-        return creds;
+        return SshCredentialsIndex.get(id);
     }
 
     public static String getContainerServiceName(String containerService) {
@@ -498,64 +565,12 @@ public class ACSDeploymentContext extends BaseCommandContext
                                                     @QueryParameter String resourceGroupName,
                                                     @QueryParameter String containerService,
                                                     @QueryParameter String sshCredentialsId) {
-            String validateResult = validate(
+            return ConfigurationVerifier.verify(
+                    owner,
                     azureCredentialsId,
                     resourceGroupName,
                     containerService,
                     sshCredentialsId);
-            if (validateResult != null) {
-                return FormValidation.error(validateResult);
-            }
-
-            try {
-                Azure azureClient = AzureHelper.buildClient(owner, azureCredentialsId);
-
-                ResourceGroup group = azureClient.resourceGroups().getByName(resourceGroupName);
-                if (group == null) {
-                    return FormValidation.error(Messages.ACSDeploymentContext_resourceGroupNotFound());
-                }
-
-                String containerServiceType = getOrchestratorType(containerService);
-                String containerServiceName = getContainerServiceName(containerService);
-                if (Constants.AKS.equals(containerServiceType)) {
-                    GenericResource resource =
-                            azureClient.genericResources().get(
-                                    resourceGroupName,
-                                    Constants.AKS_PROVIDER,
-                                    Constants.AKS_RESOURCE_TYPE,
-                                    containerServiceName);
-                    if (resource == null) {
-                        return FormValidation.error(Messages.ACSDeploymentContext_containerServiceNotFound());
-                    }
-                    return FormValidation.ok(Messages.ACSDeploymentContext_validationSuccess());
-                } else {
-                    ContainerService container = azureClient
-                            .containerServices()
-                            .getByResourceGroup(resourceGroupName, containerServiceName);
-                    if (container == null) {
-                        return FormValidation.error(Messages.ACSDeploymentContext_containerServiceNotFound());
-                    }
-
-                    if (!container.orchestratorType().toString().equalsIgnoreCase(containerServiceType)) {
-                        return FormValidation.error(Messages.ACSDeploymentContext_containerServiceTypeMissMatch());
-                    }
-
-                    try {
-                        SSHClient sshClient = new SSHClient(
-                                container.masterFqdn(),
-                                Constants.sshPort(container.orchestratorType()),
-                                getSshCredentials(sshCredentialsId));
-                        try (SSHClient ignore = sshClient.connect()) {
-                            sshClient.execRemote("ls");
-                        }
-                    } catch (Exception e) {
-                        return FormValidation.error(Messages.ACSDeploymentContext_sshFailure(e.getMessage()));
-                    }
-                    return FormValidation.ok(Messages.ACSDeploymentContext_validationSuccess());
-                }
-            } catch (Exception e) {
-                return FormValidation.error(Messages.ACSDeploymentContext_validationError(e.getMessage()));
-            }
         }
 
         public ListBoxModel doFillResourceGroupNameItems(@AncestorInPath Item owner,
@@ -569,9 +584,9 @@ public class ACSDeploymentContext extends BaseCommandContext
             }
 
             try {
-                Azure azureClient = AzureHelper.buildClient(owner, azureCredentialsId);
-                for (ResourceGroup resourceGroup : azureClient.resourceGroups().list()) {
-                    model.add(resourceGroup.name());
+                TokenCredentialData token = AzureHelper.getToken(owner, azureCredentialsId);
+                for (String name : AzureInventoryCache.getResourceGroups(azureCredentialsId, token)) {
+                    model.add(name);
                 }
             } catch (Exception ex) {
                 model.add(
@@ -602,28 +617,10 @@ public class ACSDeploymentContext extends BaseCommandContext
             }
 
             try {
-                Azure azureClient = AzureHelper.buildClient(owner, azureCredentialsId);
-
-                PagedList<ContainerService> containerServices =
-                        azureClient.containerServices().listByResourceGroup(resourceGroupName);
-                for (ContainerService containerService : containerServices) {
-                    ContainerServiceOrchestratorTypes orchestratorType = containerService.orchestratorType();
-                    if (Constants.SUPPORTED_ORCHESTRATOR.contains(orchestratorType)) {
-                        String value = String.format("%s | %s",
-                                containerService.name(), containerService.orchestratorType());
-                        model.add(value);
-                    }
-                }
-
-                PagedList<GenericResource> resources =
-                        azureClient.genericResources().listByResourceGroup(resourceGroupName);
-                for (GenericResource resource : resources) {
-                    if (Constants.AKS_PROVIDER.equals(resource.resourceProviderNamespace())
-                            && Constants.AKS_RESOURCE_TYPE.equals(resource.resourceType())) {
-                        String value = String.format("%s | %s",
-                                resource.name(), Constants.AKS);
-                        model.add(value);
-                    }
+                TokenCredentialData token = AzureHelper.getToken(owner, azureCredentialsId);
+                for (String value
+                        : AzureInventoryCache.getContainerServices(azureCredentialsId, token, resourceGroupName)) {
+                    model.add(value);
                 }
             } catch (Exception ex) {
                 model.add(
@@ -727,6 +724,21 @@ public class ACSDeploymentContext extends BaseCommandContext
             return "default";
         }
 
+        public ListBoxModel doFillDcosUpdateStrategyItems() {
+            ListBoxModel model = new ListBoxModel();
+            model.add(Messages.ACSDeploymentContext_dcosUpdateRecreate(), Constants.MARATHON_UPDATE_RECREATE);
+            model.add(Messages.ACSDeploymentContext_dcosUpdateRolling(), Constants.MARATHON_UPDATE_ROLLING);
+            return model;
+        }
+
+        public String getDefaultDcosUpdateStrategy() {
+            return Constants.MARATHON_UPDATE_RECREATE;
+        }
+
+        public FormValidation doCheckDcosDeploymentTimeoutMinutes(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
         public String getDefaultRunOn() {
             return "Success";
         }
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.acs;
+
+import com.microsoft.jenkins.acs.util.AzureClientCache;
+import com.microsoft.jenkins.acs.util.AzureTransportSettings;
+import hudson.Extension;
+import hudson.util.FormValidation;
+import jenkins.model.GlobalConfiguration;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Global configuration of the Azure Container Service plugin.
+ */
+@Extension
+public class AzureACSGlobalConfiguration extends GlobalConfiguration {
+    public static final int DEFAULT_METADATA_CACHE_MINUTES = 60;
+    public static final int DEFAULT_SSH_PROBE_TIMEOUT_SECONDS = 10;
+    public static final int DEFAULT_PORT_UPDATE_TIMEOUT_MINUTES = 30;
+
+    private int connectTimeoutSeconds;
+    private int readTimeoutSeconds;
+    private int maxIdleConnections;
+    private int metadataCacheMinutes = DEFAULT_METADATA_CACHE_MINUTES;
+    private int sshProbeTimeoutSeconds = DEFAULT_SSH_PROBE_TIMEOUT_SECONDS;
+    private int portUpdateTimeoutMinutes = DEFAULT_PORT_UPDATE_TIMEOUT_MINUTES;
+
+    public AzureACSGlobalConfiguration() {
+        load();
+    }
+
+    public static AzureACSGlobalConfiguration get() {
+        return GlobalConfiguration.all().get(AzureACSGlobalConfiguration.class);
+    }
+
+    @Override
+    public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+        req.bindJSON(this, json);
+        save();
+        // release the connection pools built with the previous settings
+        AzureClientCache.invalidateAll();
+        return true;
+    }
+
+    public AzureTransportSettings getTransportSettings() {
+        return new AzureTransportSettings(connectTimeoutSeconds, readTimeoutSeconds, maxIdleConnections);
+    }
+
+    public int getConnectTimeoutSeconds() {
+        return connectTimeoutSeconds;
+    }
+
+    public void setConnectTimeoutSeconds(int connectTimeoutSeconds) {
+        this.connectTimeoutSeconds = connectTimeoutSeconds;
+    }
+
+    public int getReadTimeoutSeconds() {
+        return readTimeoutSeconds;
+    }
+
+    public void setReadTimeoutSeconds(int readTimeoutSeconds) {
+        this.readTimeoutSeconds = readTimeoutSeconds;
+    }
+
+    public int getMaxIdleConnections() {
+        return maxIdleConnections;
+    }
+
+    public void setMaxIdleConnections(int maxIdleConnections) {
+        this.maxIdleConnections = maxIdleConnections;
+    }
+
+    /**
+     * @return how long in minutes the container service metadata is reused before it is read from Azure again,
+     * non-positive value disables the cache
+     */
+    public int getMetadataCacheMinutes() {
+        return metadataCacheMinutes;
+    }
+
+    public void setMetadataCacheMinutes(int metadataCacheMinutes) {
+        this.metadataCacheMinutes = metadataCacheMinutes;
+    }
+
+    public int getSshProbeTimeoutSeconds() {
+        return sshProbeTimeoutSeconds;
+    }
+
+    public void setSshProbeTimeoutSeconds(int sshProbeTimeoutSeconds) {
+        this.sshProbeTimeoutSeconds = sshProbeTimeoutSeconds;
+    }
+
+    /**
+     * @return the overall deadline in minutes for opening the service ports in the security group and the load
+     * balancer of the agents
+     */
+    public int getPortUpdateTimeoutMinutes() {
+        return portUpdateTimeoutMinutes;
+    }
+
+    public void setPortUpdateTimeoutMinutes(int portUpdateTimeoutMinutes) {
+        this.portUpdateTimeoutMinutes = portUpdateTimeoutMinutes;
+    }
+
+    public FormValidation doCheckConnectTimeoutSeconds(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public FormValidation doCheckReadTimeoutSeconds(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public FormValidation doCheckMaxIdleConnections(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public FormValidation doCheckMetadataCacheMinutes(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public FormValidation doCheckSshProbeTimeoutSeconds(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckPortUpdateTimeoutMinutes(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.plugin_displayName();
+    }
+}
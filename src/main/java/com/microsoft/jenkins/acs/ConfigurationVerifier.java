@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.acs;
+
+import com.cloudbees.jenkins.plugins.sshcredentials.SSHUserPrivateKey;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.microsoft.azure.management.Azure;
+import com.microsoft.azure.management.containerservice.ContainerService;
+import com.microsoft.azure.management.containerservice.KubernetesCluster;
+import com.microsoft.azure.management.resources.ResourceGroup;
+import com.microsoft.jenkins.acs.util.AzureClientCache;
+import com.microsoft.jenkins.acs.util.AzureHelper;
+import com.microsoft.jenkins.acs.util.AzureTransportSettings;
+import com.microsoft.jenkins.acs.util.Constants;
+import com.microsoft.jenkins.azurecommons.core.credentials.TokenCredentialData;
+import hudson.model.Item;
+import hudson.util.FormValidation;
+import hudson.util.Secret;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Backs the "Verify Configuration" button of the {@link ACSDeploymentContext}.
+ * <p>
+ * The resource group is checked concurrently with the container service, and the master is probed with an SSH
+ * handshake and authentication only, bounded by the configured timeout. Successful results are remembered for
+ * {@value #SUCCESS_TTL_SECONDS} seconds, so that verifying many jobs pointing to the same cluster does not hit ARM and
+ * the master every time.
+ * <p>
+ * The SSH probe is a single JSch connection, whose connect, key exchange and authentication are all bounded by the
+ * timeout on the socket, so a stalled server cannot hold the request thread past it.
+ */
+final class ConfigurationVerifier {
+    private static final long SUCCESS_TTL_SECONDS = 60;
+    private static final int MAX_CACHED_RESULTS = 256;
+    private static final int VERIFY_THREADS = 4;
+    // Used when the transport timeout is left to the SDK default
+    private static final int DEFAULT_ARM_TIMEOUT_SECONDS = 60;
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(VERIFY_THREADS,
+            new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("azure-acs-verify-%d")
+                    .build());
+
+    private static final Cache<String, FormValidation> SUCCESSES = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_RESULTS)
+            .expireAfterWrite(SUCCESS_TTL_SECONDS, TimeUnit.SECONDS)
+            .build();
+
+    static FormValidation verify(
+            Item owner,
+            String azureCredentialsId,
+            final String resourceGroupName,
+            String containerService,
+            String sshCredentialsId) {
+        String validateResult = ACSDeploymentContext.validate(
+                azureCredentialsId,
+                resourceGroupName,
+                containerService,
+                sshCredentialsId);
+        if (validateResult != null) {
+            return FormValidation.error(validateResult);
+        }
+
+        try {
+            TokenCredentialData token = AzureHelper.getToken(owner, azureCredentialsId);
+            SSHUserPrivateKey sshCredentials = ACSDeploymentContext.getSshCredentials(sshCredentialsId);
+            String key = StringUtils.join(new String[]{
+                    azureCredentialsId,
+                    AzureClientCache.fingerprint(token),
+                    resourceGroupName.toLowerCase(Locale.ENGLISH),
+                    containerService,
+                    sshCredentialsId,
+                    fingerprint(sshCredentials),
+            }, '|');
+            FormValidation cached = SUCCESSES.getIfPresent(key);
+            if (cached != null) {
+                return cached;
+            }
+
+            AzureTransportSettings transport = AzureTransportSettings.current();
+            final Azure azureClient = AzureHelper.buildClient(azureCredentialsId, token, transport);
+            long groupDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(requestTimeoutSeconds(transport));
+            Future<ResourceGroup> group = EXECUTOR.submit(new Callable<ResourceGroup>() {
+                @Override
+                public ResourceGroup call() throws Exception {
+                    return azureClient.resourceGroups().getByName(resourceGroupName);
+                }
+            });
+
+            FormValidation result;
+            try {
+                result = verifyContainerService(azureClient, resourceGroupName, containerService, sshCredentials);
+            } catch (Exception e) {
+                result = FormValidation.error(Messages.ACSDeploymentContext_validationError(e.getMessage()));
+            }
+
+            // A missing resource group explains any container service failure, so report it first
+            try {
+                long remaining = Math.max(0, groupDeadline - System.nanoTime());
+                if (group.get(remaining, TimeUnit.NANOSECONDS) == null) {
+                    return FormValidation.error(Messages.ACSDeploymentContext_resourceGroupNotFound());
+                }
+            } catch (ExecutionException e) {
+                return FormValidation.error(Messages.ACSDeploymentContext_validationError(e.getCause().getMessage()));
+            } catch (TimeoutException e) {
+                group.cancel(true);
+                return FormValidation.error(Messages.ConfigurationVerifier_resourceGroupTimeout(
+                        resourceGroupName, requestTimeoutSeconds(transport)));
+            }
+
+            if (result.kind == FormValidation.Kind.OK) {
+                SUCCESSES.put(key, result);
+            }
+            return result;
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            return FormValidation.error(Messages.ACSDeploymentContext_validationError(e.getMessage()));
+        }
+    }
+
+    private static FormValidation verifyContainerService(
+            Azure azureClient,
+            String resourceGroupName,
+            String containerService,
+            SSHUserPrivateKey sshCredentials) {
+        String containerServiceType = ACSDeploymentContext.getOrchestratorType(containerService);
+        String containerServiceName = ACSDeploymentContext.getContainerServiceName(containerService);
+        if (Constants.AKS.equals(containerServiceType)) {
+            KubernetesCluster cluster =
+                    azureClient.kubernetesClusters().getByResourceGroup(resourceGroupName, containerServiceName);
+            if (cluster == null) {
+                return FormValidation.error(Messages.ACSDeploymentContext_containerServiceNotFound());
+            }
+            return FormValidation.ok(Messages.ACSDeploymentContext_validationSuccess());
+        }
+
+        ContainerService container = azureClient
+                .containerServices()
+                .getByResourceGroup(resourceGroupName, containerServiceName);
+        if (container == null) {
+            return FormValidation.error(Messages.ACSDeploymentContext_containerServiceNotFound());
+        }
+
+        if (!container.orchestratorType().toString().equalsIgnoreCase(containerServiceType)) {
+            return FormValidation.error(Messages.ACSDeploymentContext_containerServiceTypeMissMatch());
+        }
+
+        try {
+            probeSsh(
+                    container.masterFqdn(),
+                    Constants.sshPort(container.orchestratorType()),
+                    sshCredentials,
+                    (int) TimeUnit.SECONDS.toMillis(AzureACSGlobalConfiguration.get().getSshProbeTimeoutSeconds()));
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            return FormValidation.error(Messages.ACSDeploymentContext_sshFailure(e.getMessage()));
+        }
+        return FormValidation.ok(Messages.ACSDeploymentContext_validationSuccess());
+    }
+
+    /**
+     * Check that the SSH server is reachable and accepts the credentials, without opening any channel.
+     *
+     * @param timeoutMillis the timeout of the connect and of each read during the key exchange and authentication
+     */
+    @VisibleForTesting
+    static void probeSsh(String host, int port, SSHUserPrivateKey credentials, int timeoutMillis)
+            throws JSchException {
+        JSch jsch = new JSch();
+        byte[] passphrase = credentials.getPassphrase() == null
+                ? null
+                : Secret.toString(credentials.getPassphrase()).getBytes(StandardCharsets.UTF_8);
+        int index = 0;
+        for (String privateKey : credentials.getPrivateKeys()) {
+            jsch.addIdentity(credentials.getUsername() + "-" + index++,
+                    privateKey.getBytes(StandardCharsets.UTF_8), null, passphrase);
+        }
+        Session session = jsch.getSession(credentials.getUsername(), host, port);
+        session.setConfig("StrictHostKeyChecking", "no");
+        session.setTimeout(timeoutMillis);
+        try {
+            session.connect(timeoutMillis);
+        } finally {
+            session.disconnect();
+        }
+    }
+
+    /**
+     * Calculate the time limit of a single ARM request from the transport settings.
+     *
+     * @param transport the HTTP transport settings the client is built with
+     * @return the connect timeout plus the read timeout in seconds
+     */
+    @VisibleForTesting
+    static int requestTimeoutSeconds(AzureTransportSettings transport) {
+        int connectTimeout = transport.getConnectTimeoutSeconds();
+        int readTimeout = transport.getReadTimeoutSeconds();
+        return (connectTimeout > 0 ? connectTimeout : DEFAULT_ARM_TIMEOUT_SECONDS)
+                + (readTimeout > 0 ? readTimeout : DEFAULT_ARM_TIMEOUT_SECONDS);
+    }
+
+    /**
+     * Calculate the fingerprint of the SSH credentials, which covers the fields used for the authentication, so that
+     * an updated key or username invalidates the remembered successes.
+     *
+     * @param credentials the SSH credentials, may be {@code null}
+     * @return hex encoded SHA-256 digest of the username, private keys and passphrase
+     */
+    @VisibleForTesting
+    static String fingerprint(SSHUserPrivateKey credentials) {
+        if (credentials == null) {
+            return "";
+        }
+        StringBuilder data = new StringBuilder();
+        data.append(credentials.getUsername()).append('\0');
+        for (String privateKey : credentials.getPrivateKeys()) {
+            data.append(privateKey).append('\0');
+        }
+        data.append(Secret.toString(credentials.getPassphrase()));
+        return DigestUtils.sha256Hex(data.toString());
+    }
+
+    private ConfigurationVerifier() {
+        // hide constructor
+    }
+}
@@ -9,6 +9,7 @@ package com.microsoft.jenkins.acs.commands;
 import com.microsoft.azure.management.Azure;
 import com.microsoft.jenkins.acs.orchestrators.DeploymentConfig;
 import com.microsoft.jenkins.acs.util.AzureHelper;
+import com.microsoft.jenkins.acs.util.AzureTransportSettings;
 import com.microsoft.jenkins.azurecommons.core.credentials.TokenCredentialData;
 import hudson.FilePath;
 import hudson.model.Item;
@@ -22,10 +23,13 @@ public class AKSDeploymentCommand
     @Override
     public void execute(IAKSDeploymentCommandData context) {
         final Item owner = context.getJobContext().getOwner();
-        final TokenCredentialData token = AzureHelper.getToken(owner, context.getAzureCredentialsId());
+        final String azureCredentialsId = context.getAzureCredentialsId();
+        final TokenCredentialData token = AzureHelper.getToken(owner, azureCredentialsId);
 
         AKSDeployWorker deployer = new AKSDeployWorker();
+        deployer.setAzureCredentialsId(azureCredentialsId);
         deployer.setToken(token);
+        deployer.setTransport(AzureTransportSettings.current());
         deployer.setResourceGroupName(context.getResourceGroupName());
         deployer.setContainerServiceName(context.getContainerServiceName());
 
@@ -33,7 +37,9 @@ public class AKSDeploymentCommand
     }
 
     static class AKSDeployWorker extends KubernetesDeployWorker {
+        private String azureCredentialsId;
         private TokenCredentialData token;
+        private AzureTransportSettings transport;
         private String resourceGroupName;
         private String containerServiceName;
 
@@ -45,7 +51,8 @@ public class AKSDeploymentCommand
 
         @Override
         protected void prepareKubeconfig(FilePath kubeconfigFile) throws Exception {
-            Azure azureClient = AzureHelper.buildClient(token);
+            Azure azureClient = AzureHelper.buildClient(
+                    azureCredentialsId, token, transport, getTaskListener().getLogger());
             byte[] adminKubeConfigContent = azureClient.kubernetesClusters()
                     .getAdminKubeConfigContent(getResourceGroupName(), getContainerServiceName());
 
@@ -73,6 +80,14 @@ public class AKSDeploymentCommand
             this.containerServiceName = containerServiceName;
         }
 
+        public String getAzureCredentialsId() {
+            return azureCredentialsId;
+        }
+
+        public void setAzureCredentialsId(String azureCredentialsId) {
+            this.azureCredentialsId = azureCredentialsId;
+        }
+
         public TokenCredentialData getToken() {
             return token;
         }
@@ -80,6 +95,14 @@ public class AKSDeploymentCommand
         public void setToken(TokenCredentialData token) {
             this.token = token;
         }
+
+        public AzureTransportSettings getTransport() {
+            return transport;
+        }
+
+        public void setTransport(AzureTransportSettings transport) {
+            this.transport = transport;
+        }
     }
 
     public interface IAKSDeploymentCommandData
@@ -7,23 +7,38 @@
 package com.microsoft.jenkins.acs.commands;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.microsoft.azure.PagedList;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.microsoft.azure.CloudException;
 import com.microsoft.azure.management.Azure;
 import com.microsoft.azure.management.containerservice.ContainerServiceOrchestratorTypes;
 import com.microsoft.azure.management.network.LoadBalancer;
 import com.microsoft.azure.management.network.LoadBalancerBackend;
 import com.microsoft.azure.management.network.LoadBalancerFrontend;
+import com.microsoft.azure.management.network.LoadBalancerHttpProbe;
+import com.microsoft.azure.management.network.LoadBalancerTcpProbe;
 import com.microsoft.azure.management.network.LoadBalancingRule;
 import com.microsoft.azure.management.network.LoadDistribution;
 import com.microsoft.azure.management.network.NetworkSecurityGroup;
 import com.microsoft.azure.management.network.NetworkSecurityRule;
 import com.microsoft.azure.management.network.SecurityRuleAccess;
 import com.microsoft.azure.management.network.SecurityRuleDirection;
+import com.microsoft.azure.management.network.TransportProtocol;
+import com.microsoft.azure.management.network.implementation.LoadBalancerInner;
+import com.microsoft.azure.management.network.implementation.NetworkSecurityGroupInner;
+import com.microsoft.azure.management.resources.fluentcore.arm.collection.SupportsGettingById;
+import com.microsoft.jenkins.acs.AzureACSGlobalConfiguration;
 import com.microsoft.jenkins.acs.Messages;
 import com.microsoft.jenkins.acs.orchestrators.DeploymentConfig;
+import com.microsoft.jenkins.acs.orchestrators.LoadBalancerSettings;
 import com.microsoft.jenkins.acs.orchestrators.ServicePort;
+import com.microsoft.jenkins.acs.orchestrators.ServicePortRange;
 import com.microsoft.jenkins.acs.util.AzureHelper;
-import com.microsoft.jenkins.acs.util.Constants;
+import com.microsoft.jenkins.acs.util.AzureTransportSettings;
+import com.microsoft.jenkins.acs.util.ConditionalUpdateInterceptor;
+import com.microsoft.jenkins.acs.util.ContainerServiceMetadata;
+import com.microsoft.jenkins.acs.util.ContainerServiceMetadataCache;
+import com.microsoft.jenkins.acs.util.PortRangeSet;
 import com.microsoft.jenkins.azurecommons.JobContext;
 import com.microsoft.jenkins.azurecommons.command.CommandState;
 import com.microsoft.jenkins.azurecommons.command.IBaseCommandData;
@@ -34,21 +49,90 @@ import hudson.FilePath;
 import hudson.model.Item;
 import hudson.model.TaskListener;
 import jenkins.security.MasterToSlaveCallable;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
 
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.Serializable;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class EnablePortCommand implements ICommand<EnablePortCommand.IEnablePortCommandData>, Serializable {
     private static final long serialVersionUID = 1L;
 
     public static final int LOAD_BALANCER_IDLE_TIMEOUT_IN_MINUTES = 5;
 
+    static final String COMPACTED_RULE_PREFIX = "Allow_ServicePorts_";
+
+    /**
+     * Prefix of the descriptions of the security rules created by this plugin. Together with the rule name, it tells
+     * the generated rules from the ones managed by the users, which may follow the same naming.
+     */
+    static final String GENERATED_RULE_MARKER = "[azure-acs] ";
+
+    /**
+     * Max number of port ranges in one compacted security rule, keeps each augmented rule well within the limits.
+     */
+    static final int MAX_RANGES_PER_RULE = 100;
+
+    /**
+     * Max number of load balancing rules created for the service ports, in line with the limit of rules of a basic
+     * load balancer. The port ranges that do not fit get no load balancing rules.
+     */
+    static final int MAX_LOAD_BALANCING_RULES = 250;
+
+    /**
+     * Attempts to update the security group or the load balancer, when the update conflicts with a concurrent one.
+     */
+    static final int MAX_UPDATE_ATTEMPTS = 3;
+    static final long RETRY_BACKOFF_MILLIS = 2000;
+
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * Locks of the agent network resources of the clusters, held on the controller across the update.
+     */
+    private static final Striped<Lock> CLUSTER_LOCKS = Striped.lazyWeakLock(LOCK_STRIPES);
+
+    /**
+     * Names of the load balancer probes created by this plugin.
+     */
+    private static final Pattern GENERATED_PROBE_NAME = Pattern.compile("^(tcp|http)Port\\d+Probe(-[0-9a-f]+)?$");
+
+    /**
+     * Names of the security rules created by this plugin, either for a single port or range, or compacted.
+     */
+    private static final Pattern GENERATED_RULE_NAME =
+            Pattern.compile("^Allow_(\\d+(-\\d+)?|ServicePorts_\\d+)$");
+
+    /**
+     * Names of the single port security rules created by the versions of this plugin without the marker.
+     */
+    private static final Pattern LEGACY_RULE_NAME = Pattern.compile("^Allow_(\\d+)$");
+
     static final class InvalidConfigException extends Exception {
         InvalidConfigException(String message) {
             super(message);
@@ -66,28 +150,69 @@ public class EnablePortCommand implements ICommand<EnablePortCommand.IEnablePort
         final ContainerServiceOrchestratorTypes orchestratorType = context.getOrchestratorType();
         final String azureCredentialsId = context.getAzureCredentialsId();
         final String resourceGroupName = context.getResourceGroupName();
+        final String containerServiceName = context.getContainerServiceName();
+        final boolean compactSecurityRules = context.isCompactSecurityRules();
 
         try {
             final TokenCredentialData token = AzureHelper.getToken(owner, azureCredentialsId);
-            CommandState state = workspace.act(new MasterToSlaveCallable<CommandState, Exception>() {
-                @Override
-                public CommandState call() throws Exception {
-                    PrintStream logger = taskListener.getLogger();
+            final AzureTransportSettings transport = AzureTransportSettings.current();
+            final int timeoutMinutes = AzureACSGlobalConfiguration.get().getPortUpdateTimeoutMinutes();
+
+            final String subscriptionId = token.getSubscriptionId();
+            // Serialize the updates of the same cluster from concurrent builds, so that each one reads the
+            // resources and the recorded state after the previous one has been applied
+            final Lock lock = CLUSTER_LOCKS.get(
+                    clusterKey(subscriptionId, resourceGroupName, containerServiceName));
+            if (!lock.tryLock()) {
+                taskListener.getLogger().println(Messages.EnablePortCommand_waitingForLock(containerServiceName));
+                lock.lockInterruptibly();
+            }
+            try {
+                final ContainerServiceMetadataCache metadataCache = ContainerServiceMetadataCache.get();
+                ContainerServiceMetadata metadata =
+                        metadataCache.peek(subscriptionId, resourceGroupName, containerServiceName);
+                if (metadata == null) {
+                    metadata = new ContainerServiceMetadata();
+                }
+                // Only the network state is taken from this copy, the rest of the entry may change meanwhile
+                final NetworkResourceState recorded = new NetworkResourceState(
+                        metadata.getSecurityGroupId(), metadata.getSecurityGroupEtag(),
+                        metadata.getLoadBalancerId(), metadata.getLoadBalancerEtag(),
+                        metadata.getAppliedPortsDigest());
 
-                    Azure azureClient = AzureHelper.buildClient(token);
+                NetworkResourceState applied = workspace.act(
+                        new MasterToSlaveCallable<NetworkResourceState, Exception>() {
+                    @Override
+                    public NetworkResourceState call() throws Exception {
+                        PrintStream logger = taskListener.getLogger();
 
-                    DeploymentConfig config = configFactory.build(orchestratorType, workspace, envVars);
+                        final Azure azureClient =
+                                AzureHelper.buildClient(azureCredentialsId, token, transport, logger);
 
-                    final String resourcePrefix = config.getResourcePrefix();
-                    final List<ServicePort> servicePorts = config.getServicePorts();
+                        DeploymentConfig config = configFactory.build(orchestratorType, workspace, envVars);
 
-                    createSecurityRules(azureClient, resourceGroupName, resourcePrefix, servicePorts, logger);
+                        final String resourcePrefix = config.getResourcePrefix();
+                        final List<ServicePortRange> servicePorts = config.getServicePortRanges();
 
-                    createLoadBalancerRules(azureClient, resourceGroupName, resourcePrefix, servicePorts, logger);
-                    return CommandState.Success;
+                        return updateNetworkResources(azureClient, resourceGroupName, resourcePrefix, servicePorts,
+                                recorded, compactSecurityRules, timeoutMinutes, logger);
+                    }
+                });
+
+                if (!applied.equals(recorded)) {
+                    final ContainerServiceMetadata networkState = new ContainerServiceMetadata();
+                    networkState.setSecurityGroupId(applied.getSecurityGroupId());
+                    networkState.setSecurityGroupEtag(applied.getSecurityGroupEtag());
+                    networkState.setLoadBalancerId(applied.getLoadBalancerId());
+                    networkState.setLoadBalancerEtag(applied.getLoadBalancerEtag());
+                    networkState.setAppliedPortsDigest(applied.getPortsDigest());
+                    metadataCache.updateNetworkState(
+                            subscriptionId, resourceGroupName, containerServiceName, networkState);
                 }
-            });
-            context.setCommandState(state);
+            } finally {
+                lock.unlock();
+            }
+            context.setCommandState(CommandState.Success);
         } catch (Exception e) {
             if (e instanceof InterruptedException) {
                 Thread.currentThread().interrupt();
@@ -96,18 +221,230 @@ public class EnablePortCommand implements ICommand<EnablePortCommand.IEnablePort
         }
     }
 
+    /**
+     * Open the ports in the security group and the load balancer of the agents. The two resources are independent,
+     * so they are updated concurrently, each blocking on its own long running operation.
+     * <p>
+     * If the ports are the same as the ones applied by the previous build and neither resource has been modified
+     * since then, as told by their ETags, the update is skipped altogether.
+     *
+     * @param recorded             the state recorded after the previous build
+     * @param compactSecurityRules whether to compact the security rules generated by this plugin
+     * @return the state after this update
+     */
+    static NetworkResourceState updateNetworkResources(
+            final Azure azureClient,
+            final String resourceGroupName,
+            final String resourcePrefix,
+            final List<ServicePortRange> servicePorts,
+            final NetworkResourceState recorded,
+            final boolean compactSecurityRules,
+            int timeoutMinutes,
+            final PrintStream logger) throws Exception {
+        final String portsDigest = digestServicePorts(resourcePrefix, servicePorts, compactSecurityRules);
+        if (isUnchanged(azureClient, recorded, portsDigest)) {
+            logger.println(Messages.EnablePortCommand_portsUnchanged());
+            return recorded;
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2, new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("azure-acs-enable-port-%d")
+                .build());
+        try {
+            final String securityGroupPhaseName = Messages.EnablePortCommand_securityGroupPhase();
+            final Future<NetworkSecurityGroup> securityGroupPhase = executor.submit(timed(
+                    securityGroupPhaseName, logger, retryOnConflict(
+                            securityGroupPhaseName, new Callable<NetworkSecurityGroup>() {
+                        @Override
+                        public NetworkSecurityGroup call() throws Exception {
+                            return createSecurityRules(azureClient, resourceGroupName, resourcePrefix,
+                                    recorded.getSecurityGroupId(), servicePorts, compactSecurityRules, logger);
+                        }
+                    }, logger)));
+            final String loadBalancerPhaseName = Messages.EnablePortCommand_lbPhase();
+            final Future<LoadBalancer> loadBalancerPhase = executor.submit(timed(
+                    loadBalancerPhaseName, logger, retryOnConflict(
+                            loadBalancerPhaseName, new Callable<LoadBalancer>() {
+                        @Override
+                        public LoadBalancer call() throws Exception {
+                            return createLoadBalancerRules(azureClient, resourceGroupName, resourcePrefix,
+                                    recorded.getLoadBalancerId(), servicePorts, logger);
+                        }
+                    }, logger)));
+
+            final long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(timeoutMinutes);
+            final NetworkSecurityGroup nsg = await(securityGroupPhase, deadline, timeoutMinutes);
+            final LoadBalancer loadBalancer = await(loadBalancerPhase, deadline, timeoutMinutes);
+            // Without both ETags the next build cannot tell whether the resources are still as applied
+            return new NetworkResourceState(
+                    nsg == null ? recorded.getSecurityGroupId() : nsg.id(),
+                    nsg == null ? null : nsg.inner().etag(),
+                    loadBalancer == null ? recorded.getLoadBalancerId() : loadBalancer.id(),
+                    loadBalancer == null ? null : loadBalancer.inner().etag(),
+                    portsDigest);
+        } finally {
+            // Interrupts the phase still running on failure
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Digest of everything that decides the expected security rules and load balancing rules.
+     */
+    @VisibleForTesting
+    static String digestServicePorts(String resourcePrefix, List<ServicePortRange> servicePorts, boolean compact) {
+        final List<String> ports = new ArrayList<>(servicePorts.size());
+        for (ServicePortRange servicePort : servicePorts) {
+            ports.add(servicePort.toString());
+        }
+        Collections.sort(ports);
+        return DigestUtils.sha256Hex(resourcePrefix + "|" + compact + "|" + StringUtils.join(ports, ","));
+    }
+
+    /**
+     * Check whether the given ports have been applied by the previous build, and both the security group and the
+     * load balancer are not modified since then. Costs two GET requests, compared to the listing, comparing and
+     * possibly the PUT requests of a full update.
+     */
+    @VisibleForTesting
+    static boolean isUnchanged(Azure azureClient, NetworkResourceState recorded, String portsDigest) {
+        if (!portsDigest.equals(recorded.getPortsDigest())
+                || StringUtils.isEmpty(recorded.getSecurityGroupId())
+                || StringUtils.isEmpty(recorded.getSecurityGroupEtag())
+                || StringUtils.isEmpty(recorded.getLoadBalancerId())
+                || StringUtils.isEmpty(recorded.getLoadBalancerEtag())) {
+            return false;
+        }
+        final NetworkSecurityGroup nsg =
+                getByIdOrNull(azureClient.networkSecurityGroups(), recorded.getSecurityGroupId());
+        if (nsg == null || !recorded.getSecurityGroupEtag().equals(nsg.inner().etag())) {
+            return false;
+        }
+        final LoadBalancer loadBalancer = getByIdOrNull(azureClient.loadBalancers(), recorded.getLoadBalancerId());
+        return loadBalancer != null && recorded.getLoadBalancerEtag().equals(loadBalancer.inner().etag());
+    }
+
+    /**
+     * Retry the update phase if it conflicts with a concurrent update of the same resource, e.g., from another Jenkins
+     * controller or the portal. The updates are sent with the ETag of the resource as read, so a modification made in
+     * between fails them with 412 Precondition Failed rather than being overwritten, and an operation still in progress
+     * on the resource fails them with 409 Conflict. Each attempt reads the resource again and computes the changes on
+     * top of it.
+     */
+    @VisibleForTesting
+    static <T> Callable<T> retryOnConflict(final String phase, final Callable<T> task, final PrintStream logger) {
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                for (int attempt = 1;; ++attempt) {
+                    try {
+                        return task.call();
+                    } catch (CloudException e) {
+                        if (attempt >= MAX_UPDATE_ATTEMPTS || !isConflict(e)) {
+                            throw e;
+                        }
+                        logger.println(Messages.EnablePortCommand_conflictRetry(phase, attempt, e.getMessage()));
+                        Thread.sleep(RETRY_BACKOFF_MILLIS * attempt);
+                    }
+                }
+            }
+        };
+    }
+
+    private static boolean isConflict(CloudException e) {
+        if (e.response() == null) {
+            return false;
+        }
+        final int code = e.response().code();
+        return code == HttpURLConnection.HTTP_CONFLICT || code == HttpURLConnection.HTTP_PRECON_FAILED;
+    }
+
+    private static String etag(NetworkSecurityGroupInner inner) {
+        return inner == null ? null : inner.etag();
+    }
+
+    private static String etag(LoadBalancerInner inner) {
+        return inner == null ? null : inner.etag();
+    }
+
+    private static String clusterKey(String subscriptionId, String resourceGroupName, String containerServiceName) {
+        // Azure resource group and resource names are case insensitive
+        return String.format("/subscriptions/%s/resourceGroups/%s/%s",
+                subscriptionId, resourceGroupName, containerServiceName).toLowerCase(Locale.ENGLISH);
+    }
+
+    private static <T> T await(Future<T> phase, long deadline, int timeoutMinutes) throws Exception {
+        try {
+            return phase.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            throw new TimeoutException(Messages.EnablePortCommand_timeout(timeoutMinutes));
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    private static <T> Callable<T> timed(final String phase, final PrintStream logger, final Callable<T> task) {
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                final long start = System.nanoTime();
+                try {
+                    return task.call();
+                } finally {
+                    logger.println(Messages.EnablePortCommand_phaseFinished(
+                            phase, String.valueOf(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))));
+                }
+            }
+        };
+    }
+
     @VisibleForTesting
     static int filterPortsToOpen(
             Collection<NetworkSecurityRule> rules,
             Set<Integer> portsToOpen,
             PrintStream logger) throws InvalidConfigException {
+        final PortsToOpen result = filterPortsToOpen(rules, PortRangeSet.of(portsToOpen), logger);
+
+        Iterator<Integer> it = portsToOpen.iterator();
+        while (it.hasNext()) {
+            if (!result.getPorts().contains(it.next())) {
+                it.remove();
+            }
+        }
+
+        return result.getMaxPriority();
+    }
+
+    /**
+     * Filter out the ports that are already allowed by the inbound security rules.
+     *
+     * @param rules       the security rules in the security group
+     * @param portsToOpen the ports to open
+     * @param logger      the build log
+     * @return the ports not allowed yet, along with the max priority number of the rules
+     */
+    static PortsToOpen filterPortsToOpen(
+            Collection<NetworkSecurityRule> rules,
+            PortRangeSet portsToOpen,
+            PrintStream logger) throws InvalidConfigException {
         int maxPriority = Integer.MIN_VALUE;
+        PortRangeSet remaining = portsToOpen;
         for (NetworkSecurityRule rule : rules) {
             final int priority = rule.priority();
             if (priority > maxPriority) {
                 maxPriority = priority;
             }
 
+            if (remaining.isEmpty()) {
+                // Keep scanning for the max priority only
+                continue;
+            }
+
             if (!SecurityRuleDirection.INBOUND.equals(rule.direction())) {
                 // Ignore outbound rules
                 continue;
@@ -122,195 +459,784 @@ public class EnablePortCommand implements ICommand<EnablePortCommand.IEnablePort
                 continue;
             }
 
-            final String ruleDestPortRange = rule.destinationPortRange();
-            if (ruleDestPortRange.equals("*")) {
+            final PortRangeSet allowed = getDestinationPorts(rule);
+            if (allowed.isAll()) {
                 // Already allow all
                 logger.println(Messages.EnablePortCommand_securityRuleAlreadyAllowAll(
-                        rule.name(), ruleDestPortRange));
+                        rule.name(), allowed));
 
                 // No ports need to open
-                portsToOpen.clear();
-
-                break;
-            } else if (ruleDestPortRange.contains("-")) {
-                // Range
-                final String[] parts = ruleDestPortRange.split("-", 2);
-                int portStart = 0;
-                int portEnd = 0;
-                try {
-                    portStart = Integer.parseInt(parts[0]);
-                    portEnd = Integer.parseInt(parts[1]);
-                } catch (NumberFormatException ex) {
-                    throw new InvalidConfigException(
-                            Messages.EnablePortCommand_securityRuleInvalidDestinationPortRange(ruleDestPortRange));
-                }
+                remaining = PortRangeSet.EMPTY;
+                continue;
+            }
 
-                Iterator<Integer> it = portsToOpen.iterator();
-                while (it.hasNext()) {
-                    final int port = it.next();
-                    if (port >= portStart && port <= portEnd) {
-                        // Port already allowed
-                        logger.println(Messages.EnablePortCommand_securityRuleAlreadyAllowSingle(
-                                rule.name(), ruleDestPortRange, String.valueOf(port)));
-                        it.remove();
-                    }
-                }
-            } else {
-                // Single
-                final int port = Integer.parseInt(ruleDestPortRange);
-                if (portsToOpen.remove(port)) {
-                    logger.println(Messages.EnablePortCommand_securityRuleAlreadyAllowSingle(
-                            rule.name(), ruleDestPortRange, String.valueOf(port)));
-                }
+            final PortRangeSet covered = remaining.intersect(allowed);
+            if (!covered.isEmpty()) {
+                // Port already allowed
+                logger.println(Messages.EnablePortCommand_securityRuleAlreadyAllowSingle(
+                        rule.name(), allowed, covered));
+                remaining = remaining.minus(covered);
             }
         }
 
-        return maxPriority;
+        return new PortsToOpen(remaining, maxPriority);
+    }
+
+    /**
+     * Get the destination ports of the security rule, including the ones of the augmented rules, which are
+     * specified as a list of ranges.
+     */
+    @VisibleForTesting
+    static PortRangeSet getDestinationPorts(NetworkSecurityRule rule) throws InvalidConfigException {
+        List<String> ranges = new ArrayList<>();
+        if (rule.destinationPortRange() != null) {
+            ranges.add(rule.destinationPortRange());
+        }
+        if (rule.destinationPortRanges() != null) {
+            ranges.addAll(rule.destinationPortRanges());
+        }
+        try {
+            return PortRangeSet.parse(ranges);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidConfigException(
+                    Messages.EnablePortCommand_securityRuleInvalidDestinationPortRange(StringUtils.join(ranges, ",")));
+        }
     }
 
     static void createSecurityRules(
             Azure azureClient,
             String resourceGroupName,
             String resourcePrefix,
-            List<ServicePort> servicePorts,
+            List<? extends ServicePortRange> servicePorts,
             PrintStream logger) throws IOException, InvalidConfigException {
+        createSecurityRules(azureClient, resourceGroupName, resourcePrefix, null, servicePorts, false, logger);
+    }
 
-        if (servicePorts.isEmpty()) {
-            return;
-        }
+    /**
+     * Open the ports in the security group of the public agents.
+     *
+     * @param securityGroupId the resource ID of the security group resolved by a previous build, may be {@code null}
+     * @param compact         whether to compact the security rules generated by this plugin, see
+     *                        {@link #compactSecurityRules(NetworkSecurityGroup, PortRangeSet, PrintStream)}
+     * @return the security group as updated, or {@code null} if not resolved
+     */
+    static NetworkSecurityGroup createSecurityRules(
+            Azure azureClient,
+            String resourceGroupName,
+            String resourcePrefix,
+            String securityGroupId,
+            List<? extends ServicePortRange> servicePorts,
+            boolean compact,
+            PrintStream logger) throws IOException, InvalidConfigException {
 
-        Set<Integer> portsToOpen = new HashSet<Integer>();
-        for (ServicePort servicePort : servicePorts) {
-            portsToOpen.add(servicePort.getHostPort());
+        if (servicePorts.isEmpty() && !compact) {
+            return null;
         }
 
-        final PagedList<NetworkSecurityGroup> nsgs =
-                azureClient.networkSecurityGroups().listByResourceGroup(resourceGroupName);
-
-        // Find security group for public agents
-        NetworkSecurityGroup nsgPublicAgent = null;
-        for (NetworkSecurityGroup nsg : nsgs) {
-            if (nsg.name().startsWith(resourcePrefix + "-agent-public-nsg-")) {
-                nsgPublicAgent = nsg;
-                break;
-            }
+        PortRangeSet.Builder portsBuilder = new PortRangeSet.Builder();
+        for (ServicePortRange servicePort : servicePorts) {
+            portsBuilder.add(servicePort.getHostPort(), servicePort.getHostPortEnd());
         }
 
+        final NetworkSecurityGroup nsgPublicAgent =
+                findSecurityGroup(azureClient, resourceGroupName, resourcePrefix, securityGroupId, logger);
         if (nsgPublicAgent == null) {
             // Do nothing if security group not found
             logger.println(Messages.EnablePortCommand_securityGroupNotFound());
-            return;
+            return null;
         }
 
-        int maxPriority = filterPortsToOpen(nsgPublicAgent.securityRules().values(), portsToOpen, logger);
+        if (compact) {
+            return compactSecurityRules(nsgPublicAgent, portsBuilder.build(), logger);
+        }
+
+        final PortsToOpen portsToOpen =
+                filterPortsToOpen(nsgPublicAgent.securityRules().values(), portsBuilder.build(), logger);
+        final SecurityRulePriorityAllocator priorities = new SecurityRulePriorityAllocator(
+                nsgPublicAgent.securityRules().values(), portsToOpen.getMaxPriority());
+        PortRangeSet remaining = portsToOpen.getPorts();
+
+        if (remaining.isEmpty()) {
+            // Updating the security group is a full PUT plus a long running operation, skip it if nothing changes
+            logger.println(Messages.EnablePortCommand_securityGroupUpToDate(nsgPublicAgent.name()));
+            return nsgPublicAgent;
+        }
 
-        // Create security rules for ports not opened
+        // Create security rules for ports not opened, one rule for each port or port range in the config, so that
+        // a range of thousands of ports costs one rule only
+        final List<String> ruleNames = new ArrayList<>();
         final NetworkSecurityGroup.Update update = nsgPublicAgent.update();
-        for (int port : portsToOpen) {
-            logger.println(Messages.EnablePortCommand_securityRuleNotFound(String.valueOf(port)));
+        for (ServicePortRange servicePort : servicePorts) {
+            final PortRangeSet ports = remaining.intersect(servicePort.getHostPorts());
+            for (int i = 0; i < ports.rangeCount(); ++i) {
+                final int portStart = ports.rangeStart(i);
+                final int portEnd = ports.rangeEnd(i);
+                final String portText = portStart == portEnd
+                        ? String.valueOf(portStart)
+                        : portStart + "-" + portEnd;
+                logger.println(Messages.EnablePortCommand_securityRuleNotFound(portText));
+
+                final int priority = priorities.next();
+
+                final String ruleName = "Allow_" + portText;
+                logger.println(Messages.EnablePortCommand_creatingRule(portText, ruleName));
+                ruleNames.add(ruleName);
+
+                final NetworkSecurityRule.UpdateDefinitionStages.WithDestinationPort<NetworkSecurityGroup.Update>
+                        destination = update.defineRule(ruleName)
+                        .allowInbound()
+                        .fromAddress("Internet")
+                        .fromAnyPort()
+                        .toAnyAddress();
+                final NetworkSecurityRule.UpdateDefinitionStages.WithProtocol<NetworkSecurityGroup.Update> rule =
+                        portStart == portEnd
+                                ? destination.toPort(portStart)
+                                : destination.toPortRange(portStart, portEnd);
+                rule.withAnyProtocol()
+                        .withDescription(GENERATED_RULE_MARKER + Messages.EnablePortCommand_allowTraffic(portText))
+                        .withPriority(priority)
+                        .attach();
+            }
+            remaining = remaining.minus(ports);
+        }
 
-            maxPriority = maxPriority + Constants.PRIORITY_STEP;
-            if (maxPriority > Constants.LOWEST_PRIORITY) {
-                throw new InvalidConfigException(Messages.EnablePortCommand_exceedMaxPriority());
+        logger.println(Messages.EnablePortCommand_securityGroupDelta(
+                nsgPublicAgent.name(), ruleNames.size(), StringUtils.join(ruleNames, ", ")));
+        return ConditionalUpdateInterceptor.applyIfMatch(nsgPublicAgent.id(), etag(nsgPublicAgent.inner()), update);
+    }
+
+    /**
+     * Replace the security rules generated by this plugin with as few augmented rules as possible, which allow exactly
+     * the ports in the current configuration that are not allowed by other rules yet. The generated rules for the
+     * ports no longer in the configuration are removed, so this should only be enabled if all the services exposed
+     * on the public agents are deployed by the same job.
+     *
+     * @param nsg        the security group of the public agents
+     * @param configured the ports in the current configuration
+     * @param logger     the build log
+     * @return the security group as updated
+     */
+    @VisibleForTesting
+    static NetworkSecurityGroup compactSecurityRules(
+            NetworkSecurityGroup nsg,
+            PortRangeSet configured,
+            PrintStream logger) throws InvalidConfigException {
+        final List<NetworkSecurityRule> others = new ArrayList<>();
+        final Map<String, NetworkSecurityRule> generated = new TreeMap<>();
+        for (NetworkSecurityRule rule : nsg.securityRules().values()) {
+            if (isGeneratedRule(rule)) {
+                generated.put(rule.name(), rule);
+            } else {
+                others.add(rule);
             }
+        }
 
-            final String ruleName = "Allow_" + port;
-            logger.println(Messages.EnablePortCommand_creatingRule(String.valueOf(port), ruleName));
+        // The ports allowed by the rules managed by the users need no generated rule
+        final PortsToOpen portsToOpen = filterPortsToOpen(others, configured, logger);
+        final List<PortRangeSet> chunks = splitRanges(portsToOpen.getPorts(), MAX_RANGES_PER_RULE);
 
-            update.defineRule(ruleName)
+        PortRangeSet.Builder generatedPorts = new PortRangeSet.Builder();
+        boolean compacted = generated.size() == chunks.size();
+        for (NetworkSecurityRule rule : generated.values()) {
+            generatedPorts.addAll(getDestinationPorts(rule));
+        }
+        for (int i = 0; compacted && i < chunks.size(); ++i) {
+            final NetworkSecurityRule rule = generated.get(COMPACTED_RULE_PREFIX + (i + 1));
+            compacted = rule != null && chunks.get(i).equals(getDestinationPorts(rule));
+        }
+        if (compacted) {
+            logger.println(Messages.EnablePortCommand_securityGroupUpToDate(nsg.name()));
+            return nsg;
+        }
+
+        final NetworkSecurityGroup.Update update = nsg.update();
+        for (String name : generated.keySet()) {
+            update.withoutRule(name);
+        }
+        // The priorities of the generated rules are released, so they can be reused by the compacted rules
+        final SecurityRulePriorityAllocator priorities =
+                new SecurityRulePriorityAllocator(others, portsToOpen.getMaxPriority());
+        for (int i = 0; i < chunks.size(); ++i) {
+            final List<String> ranges = chunks.get(i).toRangeStrings();
+            update.defineRule(COMPACTED_RULE_PREFIX + (i + 1))
                     .allowInbound()
                     .fromAddress("Internet")
                     .fromAnyPort()
                     .toAnyAddress()
-                    .toPort(port)
+                    .toPortRanges(ranges.toArray(new String[ranges.size()]))
                     .withAnyProtocol()
-                    .withDescription(Messages.EnablePortCommand_allowTraffic(String.valueOf(port)))
-                    .withPriority(maxPriority)
+                    .withDescription(GENERATED_RULE_MARKER + Messages.EnablePortCommand_allowServicePorts())
+                    .withPriority(priorities.next())
                     .attach();
         }
 
-        update.apply();
+        logger.println(Messages.EnablePortCommand_securityGroupCompacted(nsg.name(), generated.size(), chunks.size(),
+                generatedPorts.build().minus(portsToOpen.getPorts())));
+        return ConditionalUpdateInterceptor.applyIfMatch(nsg.id(), etag(nsg.inner()), update);
+    }
+
+    static boolean isGeneratedRule(NetworkSecurityRule rule) {
+        if (rule.name() == null
+                || !SecurityRuleDirection.INBOUND.equals(rule.direction())
+                || !SecurityRuleAccess.ALLOW.equals(rule.access())) {
+            return false;
+        }
+        if (StringUtils.startsWith(rule.description(), GENERATED_RULE_MARKER)) {
+            return GENERATED_RULE_NAME.matcher(rule.name()).matches();
+        }
+        // The single port rules created before the marker was introduced carry the plain description
+        final Matcher legacy = LEGACY_RULE_NAME.matcher(rule.name());
+        return legacy.matches()
+                && Messages.EnablePortCommand_allowTraffic(legacy.group(1)).equals(rule.description());
+    }
+
+    private static List<PortRangeSet> splitRanges(PortRangeSet ports, int maxRanges) {
+        final List<PortRangeSet> chunks = new ArrayList<>();
+        PortRangeSet.Builder chunk = new PortRangeSet.Builder();
+        for (int i = 0; i < ports.rangeCount(); ++i) {
+            chunk.add(ports.rangeStart(i), ports.rangeEnd(i));
+            if ((i + 1) % maxRanges == 0 || i == ports.rangeCount() - 1) {
+                chunks.add(chunk.build());
+                chunk = new PortRangeSet.Builder();
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Find the security group of the public agents, by the resource ID resolved before if available, so that the
+     * cost does not grow with the number of the security groups in the resource group.
+     */
+    @VisibleForTesting
+    static NetworkSecurityGroup findSecurityGroup(
+            Azure azureClient,
+            String resourceGroupName,
+            String resourcePrefix,
+            String securityGroupId,
+            PrintStream logger) {
+        final String namePrefix = resourcePrefix + "-agent-public-nsg-";
+        if (StringUtils.isNotEmpty(securityGroupId)) {
+            final NetworkSecurityGroup nsg = getByIdOrNull(azureClient.networkSecurityGroups(), securityGroupId);
+            if (nsg != null && nsg.name().startsWith(namePrefix)) {
+                return nsg;
+            }
+            logger.println(Messages.EnablePortCommand_cachedResourceNotFound(securityGroupId));
+        }
+
+        for (NetworkSecurityGroup nsg
+                : azureClient.networkSecurityGroups().listByResourceGroup(resourceGroupName)) {
+            if (nsg.name().startsWith(namePrefix)) {
+                return nsg;
+            }
+        }
+        return null;
     }
 
     static void createLoadBalancerRules(
             Azure azureClient,
             String resourceGroupName,
             String resourcePrefix,
-            List<ServicePort> servicePorts,
+            List<? extends ServicePortRange> servicePorts,
+            PrintStream logger) throws IOException, InvalidConfigException {
+        createLoadBalancerRules(azureClient, resourceGroupName, resourcePrefix, null, servicePorts, logger);
+    }
+
+    /**
+     * Create the load balancing rules for the ports in the load balancer of the agents.
+     *
+     * @param loadBalancerId the resource ID of the load balancer resolved by a previous build, may be {@code null}
+     * @return the load balancer as updated, or {@code null} if not resolved
+     */
+    static LoadBalancer createLoadBalancerRules(
+            Azure azureClient,
+            String resourceGroupName,
+            String resourcePrefix,
+            String loadBalancerId,
+            List<? extends ServicePortRange> servicePorts,
             PrintStream logger) throws IOException, InvalidConfigException {
 
         if (servicePorts.isEmpty()) {
-            return;
+            return null;
         }
 
-        final PagedList<LoadBalancer> balancers = azureClient.loadBalancers().listByResourceGroup(resourceGroupName);
-
-        LoadBalancer loadBalancer = null;
-        for (LoadBalancer balancer : balancers) {
-            final String balancerName = balancer.name();
-            if (balancerName.startsWith(resourcePrefix + "-agent-lb-")) {
-                if (balancer.backends().size() != 1 || balancer.frontends().size() != 1) {
-                    throw new InvalidConfigException(Messages.EnablePortCommand_missMatch());
-                }
-
-                loadBalancer = balancer;
-                break;
-            }
+        final List<ServicePort> expanded = expandLoadBalancedPorts(servicePorts, logger);
+        if (expanded.isEmpty()) {
+            return null;
         }
 
+        final LoadBalancer loadBalancer =
+                findLoadBalancer(azureClient, resourceGroupName, resourcePrefix, loadBalancerId, logger);
         if (loadBalancer == null) {
             // Do nothing if load balancer not found
             logger.println(Messages.EnablePortCommand_lbNotFound());
-            return;
+            return null;
+        }
+        if (loadBalancer.backends().size() != 1 || loadBalancer.frontends().size() != 1) {
+            throw new InvalidConfigException(Messages.EnablePortCommand_missMatch());
         }
 
         final LoadBalancerFrontend frontend = loadBalancer.frontends().values().iterator().next();
         final LoadBalancerBackend backend = loadBalancer.backends().values().iterator().next();
-        final LoadBalancer.Update update = loadBalancer.update();
-
-        for (ServicePort servicePort : servicePorts) {
-            boolean ruleFound = false;
-            for (LoadBalancingRule rule : loadBalancer.loadBalancingRules().values()) {
-                if (servicePort.matchesLoadBalancingRule(rule)) {
-                    logger.println(Messages.EnablePortCommand_lbFound(
-                            String.valueOf(servicePort.getHostPort()), servicePort.getProtocol()));
-                    ruleFound = true;
-                    break;
+        // Only start the update when there is something to change, as applying it is a full PUT plus a long
+        // running operation
+        LoadBalancer.Update update = null;
+        int newRules = 0;
+        int updatedRules = 0;
+        int newProbes = 0;
+        int removedProbes = 0;
+
+        // Index the existing rules by frontend port and protocol, and the existing probes by port, so that each
+        // service port is reconciled in constant time
+        final Map<String, LoadBalancingRule> existingRules = new HashMap<>();
+        final Map<String, String> ruleProbes = new HashMap<>();
+        for (LoadBalancingRule rule : loadBalancer.loadBalancingRules().values()) {
+            final String key = frontendKey(rule.frontendPort(), rule.protocol());
+            if (!existingRules.containsKey(key)) {
+                existingRules.put(key, rule);
+            }
+            if (rule.probe() != null) {
+                ruleProbes.put(rule.name(), rule.probe().name());
+            }
+        }
+        final Map<Integer, List<ProbeSpec>> probesByPort = indexProbes(loadBalancer);
+
+        final Set<String> reconciled = new HashSet<>();
+        // The probes the rules have been moved off in this update, the only ones this plugin may remove
+        final Set<String> detachedProbes = new HashSet<>();
+        for (ServicePort servicePort : expanded) {
+            final int port = servicePort.getHostPort();
+            final LoadBalancerSettings settings = servicePort.getLoadBalancerSettings();
+            final String key = frontendKey(port, servicePort.getTransportProtocol());
+            if (!reconciled.add(key)) {
+                continue;
+            }
+
+            final LoadBalancingRule existing = existingRules.get(key);
+            if (existing != null) {
+                logger.println(Messages.EnablePortCommand_lbFound(String.valueOf(port), servicePort.getProtocol()));
+                if (LoadBalancerSettings.DEFAULT.equals(settings)) {
+                    // Leave the rules alone unless the config asks for specific settings
+                    continue;
+                }
+
+                final String previousProbeName = existing.probe() == null ? null : existing.probe().name();
+                String probeName = previousProbeName;
+                if (settings.hasProbeSettings()) {
+                    ProbeSpec probe = findProbe(probesByPort, port, settings);
+                    if (probe == null) {
+                        if (update == null) {
+                            update = loadBalancer.update();
+                        }
+                        probe = defineProbe(update, port, settings);
+                        addProbe(probesByPort, probe);
+                        ++newProbes;
+                    }
+                    probeName = probe.name;
+                }
+                if (!isRuleDrifted(existing, settings, probeName)) {
+                    continue;
+                }
+
+                logger.println(Messages.EnablePortCommand_lbRuleDrifted(existing.name(), settings));
+                if (update == null) {
+                    update = loadBalancer.update();
+                }
+                updateRule(update, existing.name(), settings, probeName);
+                if (probeName != null) {
+                    ruleProbes.put(existing.name(), probeName);
+                    if (previousProbeName != null && !previousProbeName.equals(probeName)) {
+                        detachedProbes.add(previousProbeName);
+                    }
                 }
+                ++updatedRules;
+                continue;
+            }
+
+            final String ruleName = "JLBRule" + servicePort.getProtocol().toString() + port;
+            logger.println(Messages.EnablePortCommand_creatingLB(String.valueOf(port), ruleName));
+            if (update == null) {
+                update = loadBalancer.update();
+            }
+            ++newRules;
+
+            // Unfortunately there is no probe type of UDP, but it's mandatory. So always use TCP probe unless an HTTP
+            // one is configured. A probe checks the backend port only, so it can be shared by the rules on the same
+            // port.
+            ProbeSpec probe = findProbe(probesByPort, port, settings);
+            if (probe == null) {
+                probe = defineProbe(update, port, settings);
+                addProbe(probesByPort, probe);
+                ++newProbes;
+            } else {
+                logger.println(Messages.EnablePortCommand_lbProbeReused(probe.name, String.valueOf(port)));
+            }
+            ruleProbes.put(ruleName, probe.name);
+
+            defineRule(update, frontend.name(), backend.name(), servicePort, ruleName, probe.name);
+        }
+
+        // Remove the probes created by this plugin that the rules have just been moved off, as every probe adds to the
+        // size of the load balancer model carried by each read and update. The probes that were already unused are
+        // left alone, as nothing shows they are not used by anyone else.
+        for (String probeName : unusedProbes(detachedProbes, new HashSet<>(ruleProbes.values()))) {
+            logger.println(Messages.EnablePortCommand_lbProbeRemoved(probeName));
+            if (update == null) {
+                update = loadBalancer.update();
             }
+            update.withoutProbe(probeName);
+            ++removedProbes;
+        }
 
-            if (!ruleFound) {
-                final String ruleName = "JLBRule" + servicePort.getProtocol().toString() + servicePort.getHostPort();
-                logger.println(Messages.EnablePortCommand_creatingLB(
-                        String.valueOf(servicePort.getHostPort()), ruleName));
+        if (update == null) {
+            logger.println(Messages.EnablePortCommand_lbUpToDate(loadBalancer.name()));
+            return loadBalancer;
+        }
+        logger.println(Messages.EnablePortCommand_lbDelta(
+                loadBalancer.name(), newRules, updatedRules, newProbes, removedProbes));
+        return ConditionalUpdateInterceptor.applyIfMatch(loadBalancer.id(), etag(loadBalancer.inner()), update);
+    }
 
-                // Unfortunately there is no probe type of UDP, but it's mandatory. So always use TCP probe.
-                final String probeName = "tcpPort" + servicePort.getHostPort() + "Probe";
+    /**
+     * Expand the service ports to the ports that get a load balancing rule each. Load balancing rules map a single
+     * frontend port each, so the single ports always get their rules, while a range is only expanded if it fits in
+     * what is left of {@link #MAX_LOAD_BALANCING_RULES}. A wider range is only opened in the security group, and the
+     * traffic to it has to reach the agents some other way, e.g., through their public IPs.
+     */
+    @VisibleForTesting
+    static List<ServicePort> expandLoadBalancedPorts(
+            List<? extends ServicePortRange> servicePorts, PrintStream logger) {
+        int available = MAX_LOAD_BALANCING_RULES;
+        for (ServicePortRange servicePortRange : servicePorts) {
+            if (servicePortRange.isSinglePort()) {
+                --available;
+            }
+        }
 
-                update
-                        .defineTcpProbe(probeName)
-                        .withPort(servicePort.getHostPort())
-                        .attach()
-                        .defineLoadBalancingRule(ruleName)
+        final List<ServicePort> expanded = new ArrayList<>();
+        for (ServicePortRange servicePortRange : servicePorts) {
+            if (!servicePortRange.isSinglePort()) {
+                if (servicePortRange.size() > available) {
+                    logger.println(Messages.EnablePortCommand_lbRangeSkipped(
+                            servicePortRange, String.valueOf(MAX_LOAD_BALANCING_RULES)));
+                    continue;
+                }
+                available -= servicePortRange.size();
+            }
+            expanded.addAll(servicePortRange.toServicePorts());
+        }
+        return expanded;
+    }
+
+    private static void defineRule(
+            LoadBalancer.Update update,
+            String frontendName,
+            String backendName,
+            ServicePort servicePort,
+            String ruleName,
+            String probeName) {
+        final int port = servicePort.getHostPort();
+        final LoadBalancerSettings settings = servicePort.getLoadBalancerSettings();
+        LoadBalancingRule.UpdateDefinitionStages.WithAttach<LoadBalancer.Update> rule =
+                update.defineLoadBalancingRule(ruleName)
                         .withProtocol(servicePort.getTransportProtocol())
-                        .fromFrontend(frontend.name())
-                        .fromFrontendPort(servicePort.getHostPort())
-                        .toBackend(backend.name())
-                        .toBackendPort(servicePort.getHostPort())
+                        .fromFrontend(frontendName)
+                        .fromFrontendPort(port)
+                        .toBackend(backendName)
+                        .toBackendPort(port)
                         .withProbe(probeName)
-                        .withIdleTimeoutInMinutes(LOAD_BALANCER_IDLE_TIMEOUT_IN_MINUTES)
-                        .withLoadDistribution(LoadDistribution.DEFAULT)
-                        .attach();
+                        .withIdleTimeoutInMinutes(settings.getIdleTimeoutMinutes() == null
+                                ? LOAD_BALANCER_IDLE_TIMEOUT_IN_MINUTES
+                                : settings.getIdleTimeoutMinutes())
+                        .withLoadDistribution(settings.getLoadDistribution() == null
+                                ? LoadDistribution.DEFAULT
+                                : settings.getLoadDistribution());
+        if (settings.getFloatingIp() != null) {
+            rule = rule.withFloatingIP(settings.getFloatingIp());
+        }
+        rule.attach();
+    }
+
+    private static List<String> unusedProbes(Set<String> detachedProbes, Set<String> referencedProbes) {
+        final List<String> unused = new ArrayList<>();
+        for (String probeName : new TreeSet<>(detachedProbes)) {
+            if (!referencedProbes.contains(probeName) && GENERATED_PROBE_NAME.matcher(probeName).matches()) {
+                unused.add(probeName);
+            }
+        }
+        return unused;
+    }
+
+    private static void updateRule(
+            LoadBalancer.Update update, String ruleName, LoadBalancerSettings settings, String probeName) {
+        LoadBalancingRule.Update ruleUpdate = update.updateLoadBalancingRule(ruleName);
+        if (settings.getIdleTimeoutMinutes() != null) {
+            ruleUpdate = ruleUpdate.withIdleTimeoutInMinutes(settings.getIdleTimeoutMinutes());
+        }
+        if (settings.getLoadDistribution() != null) {
+            ruleUpdate = ruleUpdate.withLoadDistribution(settings.getLoadDistribution());
+        }
+        if (settings.getFloatingIp() != null) {
+            ruleUpdate = ruleUpdate.withFloatingIP(settings.getFloatingIp());
+        }
+        if (probeName != null) {
+            ruleUpdate = ruleUpdate.withProbe(probeName);
+        }
+        ruleUpdate.parent();
+    }
+
+    /**
+     * Only the settings specified in the config are checked, so the changes made to the other settings out of band
+     * are preserved.
+     */
+    private static boolean isRuleDrifted(LoadBalancingRule rule, LoadBalancerSettings settings, String probeName) {
+        return settings.getIdleTimeoutMinutes() != null
+                && settings.getIdleTimeoutMinutes() != rule.idleTimeoutInMinutes()
+                || settings.getLoadDistribution() != null
+                && !settings.getLoadDistribution().equals(rule.loadDistribution())
+                || settings.getFloatingIp() != null
+                && settings.getFloatingIp() != rule.floatingIPEnabled()
+                || probeName != null
+                && (rule.probe() == null || !probeName.equals(rule.probe().name()));
+    }
+
+    private static Map<Integer, List<ProbeSpec>> indexProbes(LoadBalancer loadBalancer) {
+        final Map<Integer, List<ProbeSpec>> probesByPort = new HashMap<>();
+        for (LoadBalancerTcpProbe probe : loadBalancer.tcpProbes().values()) {
+            addProbe(probesByPort, new ProbeSpec(
+                    probe.name(), probe.port(), null, probe.intervalInSeconds(), probe.numberOfProbes()));
+        }
+        for (LoadBalancerHttpProbe probe : loadBalancer.httpProbes().values()) {
+            addProbe(probesByPort, new ProbeSpec(probe.name(), probe.port(), probe.requestPath(),
+                    probe.intervalInSeconds(), probe.numberOfProbes()));
+        }
+        return probesByPort;
+    }
 
+    private static void addProbe(Map<Integer, List<ProbeSpec>> probesByPort, ProbeSpec probe) {
+        List<ProbeSpec> probes = probesByPort.get(probe.port);
+        if (probes == null) {
+            probes = new ArrayList<>();
+            probesByPort.put(probe.port, probes);
+        }
+        probes.add(probe);
+    }
+
+    /**
+     * Find an existing probe on the port that satisfies the settings. Without probe settings, any TCP probe on the
+     * port will do.
+     */
+    private static ProbeSpec findProbe(
+            Map<Integer, List<ProbeSpec>> probesByPort, int port, LoadBalancerSettings settings) {
+        final List<ProbeSpec> probes = probesByPort.get(port);
+        if (probes == null) {
+            return null;
+        }
+        for (ProbeSpec probe : probes) {
+            if (StringUtils.equals(probe.requestPath, settings.getProbePath())
+                    && (settings.getProbeIntervalSeconds() == null
+                    || settings.getProbeIntervalSeconds() == probe.intervalInSeconds)
+                    && (settings.getProbeCount() == null || settings.getProbeCount() == probe.numberOfProbes)) {
+                return probe;
+            }
+        }
+        return null;
+    }
+
+    private static ProbeSpec defineProbe(LoadBalancer.Update update, int port, LoadBalancerSettings settings) {
+        if (!settings.hasProbeSettings()) {
+            final String probeName = "tcpPort" + port + "Probe";
+            update.defineTcpProbe(probeName)
+                    .withPort(port)
+                    .attach();
+            return new ProbeSpec(probeName, port, null, 0, 0);
+        }
+
+        // Distinguish the probes with different settings on the same port
+        final String probeName = (settings.getProbePath() == null ? "tcpPort" : "httpPort") + port + "Probe-"
+                + Integer.toHexString(Arrays.asList(settings.getProbePath(), settings.getProbeIntervalSeconds(),
+                settings.getProbeCount()).hashCode());
+        final Integer interval = settings.getProbeIntervalSeconds();
+        final Integer count = settings.getProbeCount();
+        if (settings.getProbePath() == null) {
+            LoadBalancerTcpProbe.UpdateDefinitionStages.WithAttach<LoadBalancer.Update> probe =
+                    update.defineTcpProbe(probeName).withPort(port);
+            if (interval != null) {
+                probe = probe.withIntervalInSeconds(interval);
+            }
+            if (count != null) {
+                probe = probe.withNumberOfProbes(count);
+            }
+            probe.attach();
+        } else {
+            LoadBalancerHttpProbe.UpdateDefinitionStages.WithAttach<LoadBalancer.Update> probe =
+                    update.defineHttpProbe(probeName).withRequestPath(settings.getProbePath()).withPort(port);
+            if (interval != null) {
+                probe = probe.withIntervalInSeconds(interval);
+            }
+            if (count != null) {
+                probe = probe.withNumberOfProbes(count);
+            }
+            probe.attach();
+        }
+        return new ProbeSpec(probeName, port, settings.getProbePath(),
+                interval == null ? 0 : interval, count == null ? 0 : count);
+    }
+
+    /**
+     * Find the load balancer of the agents, by the resource ID resolved before if available.
+     */
+    @VisibleForTesting
+    static LoadBalancer findLoadBalancer(
+            Azure azureClient,
+            String resourceGroupName,
+            String resourcePrefix,
+            String loadBalancerId,
+            PrintStream logger) {
+        final String namePrefix = resourcePrefix + "-agent-lb-";
+        if (StringUtils.isNotEmpty(loadBalancerId)) {
+            final LoadBalancer loadBalancer = getByIdOrNull(azureClient.loadBalancers(), loadBalancerId);
+            if (loadBalancer != null && loadBalancer.name().startsWith(namePrefix)) {
+                return loadBalancer;
+            }
+            logger.println(Messages.EnablePortCommand_cachedResourceNotFound(loadBalancerId));
+        }
+
+        for (LoadBalancer balancer : azureClient.loadBalancers().listByResourceGroup(resourceGroupName)) {
+            if (balancer.name().startsWith(namePrefix)) {
+                return balancer;
+            }
+        }
+        return null;
+    }
+
+    private static <T> T getByIdOrNull(SupportsGettingById<T> resources, String id) {
+        try {
+            return resources.getById(id);
+        } catch (CloudException e) {
+            if (e.response() != null && e.response().code() == HttpURLConnection.HTTP_NOT_FOUND) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    private static String frontendKey(int frontendPort, TransportProtocol protocol) {
+        return frontendPort + "/" + protocol;
+    }
+
+    /**
+     * Resource IDs and ETags of the security group and the load balancer of the agents, along with the digest of the
+     * ports applied to them.
+     */
+    static final class NetworkResourceState implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String securityGroupId;
+        private final String securityGroupEtag;
+        private final String loadBalancerId;
+        private final String loadBalancerEtag;
+        private final String portsDigest;
+
+        NetworkResourceState(
+                String securityGroupId,
+                String securityGroupEtag,
+                String loadBalancerId,
+                String loadBalancerEtag,
+                String portsDigest) {
+            this.securityGroupId = securityGroupId;
+            this.securityGroupEtag = securityGroupEtag;
+            this.loadBalancerId = loadBalancerId;
+            this.loadBalancerEtag = loadBalancerEtag;
+            this.portsDigest = portsDigest;
+        }
+
+        String getSecurityGroupId() {
+            return securityGroupId;
+        }
+
+        String getSecurityGroupEtag() {
+            return securityGroupEtag;
+        }
+
+        String getLoadBalancerId() {
+            return loadBalancerId;
+        }
+
+        String getLoadBalancerEtag() {
+            return loadBalancerEtag;
+        }
+
+        String getPortsDigest() {
+            return portsDigest;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
             }
+            if (!(obj instanceof NetworkResourceState)) {
+                return false;
+            }
+            NetworkResourceState other = (NetworkResourceState) obj;
+            return StringUtils.equals(securityGroupId, other.securityGroupId)
+                    && StringUtils.equals(securityGroupEtag, other.securityGroupEtag)
+                    && StringUtils.equals(loadBalancerId, other.loadBalancerId)
+                    && StringUtils.equals(loadBalancerEtag, other.loadBalancerEtag)
+                    && StringUtils.equals(portsDigest, other.portsDigest);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new Object[]{
+                    securityGroupId, securityGroupEtag, loadBalancerId, loadBalancerEtag, portsDigest});
+        }
+    }
+
+    /**
+     * Properties of a load balancer probe, either existing or defined in the pending update.
+     */
+    private static final class ProbeSpec {
+        private final String name;
+        private final int port;
+        private final String requestPath;
+        private final int intervalInSeconds;
+        private final int numberOfProbes;
+
+        ProbeSpec(String name, int port, String requestPath, int intervalInSeconds, int numberOfProbes) {
+            this.name = name;
+            this.port = port;
+            this.requestPath = requestPath;
+            this.intervalInSeconds = intervalInSeconds;
+            this.numberOfProbes = numberOfProbes;
+        }
+    }
+
+    static final class PortsToOpen {
+        private final PortRangeSet ports;
+        private final int maxPriority;
+
+        PortsToOpen(PortRangeSet ports, int maxPriority) {
+            this.ports = ports;
+            this.maxPriority = maxPriority;
+        }
+
+        PortRangeSet getPorts() {
+            return ports;
         }
 
-        update.apply();
+        int getMaxPriority() {
+            return maxPriority;
+        }
     }
 
     public interface IEnablePortCommandData extends IBaseCommandData {
         String getAzureCredentialsId();
 
+        String getContainerServiceName();
+
+        boolean isCompactSecurityRules();
+
         String getConfigFilePaths();
 
         String getResourceGroupName();
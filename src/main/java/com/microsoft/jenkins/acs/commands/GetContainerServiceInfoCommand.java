@@ -10,10 +10,14 @@ import com.google.common.annotations.VisibleForTesting;
 import com.microsoft.azure.management.Azure;
 import com.microsoft.azure.management.containerservice.ContainerService;
 import com.microsoft.azure.management.containerservice.ContainerServiceOrchestratorTypes;
+import com.microsoft.jenkins.acs.AzureACSGlobalConfiguration;
 import com.microsoft.jenkins.acs.AzureACSPlugin;
 import com.microsoft.jenkins.acs.Messages;
 import com.microsoft.jenkins.acs.util.AzureHelper;
+import com.microsoft.jenkins.acs.util.AzureTransportSettings;
 import com.microsoft.jenkins.acs.util.Constants;
+import com.microsoft.jenkins.acs.util.ContainerServiceMetadata;
+import com.microsoft.jenkins.acs.util.ContainerServiceMetadataCache;
 import com.microsoft.jenkins.azurecommons.JobContext;
 import com.microsoft.jenkins.azurecommons.command.CommandState;
 import com.microsoft.jenkins.azurecommons.command.IBaseCommandData;
@@ -27,6 +31,7 @@ import jenkins.security.MasterToSlaveCallable;
 
 import java.io.PrintStream;
 import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
 
 public class GetContainerServiceInfoCommand
         implements ICommand<GetContainerServiceInfoCommand.IGetContainerServiceInfoCommandData>, Serializable {
@@ -38,7 +43,9 @@ public class GetContainerServiceInfoCommand
         final Item owner = jobContext.getOwner();
         final FilePath workspace = jobContext.getWorkspace();
         final TaskListener taskListener = jobContext.getTaskListener();
-        final TokenCredentialData token = AzureHelper.getToken(owner, context.getAzureCredentialsId());
+        final String azureCredentialsId = context.getAzureCredentialsId();
+        final TokenCredentialData token = AzureHelper.getToken(owner, azureCredentialsId);
+        final AzureTransportSettings transport = AzureTransportSettings.current();
         final String resourceGroupName = context.getResourceGroupName();
         final String containerServiceName = context.getContainerServiceName();
         final String containerServiceType = context.getContainerServiceType();
@@ -46,11 +53,12 @@ public class GetContainerServiceInfoCommand
 
         final String aiType = AzureACSPlugin.normalizeContainerSerivceType(containerServiceType);
 
-        Azure azureClient = AzureHelper.buildClient(token);
+        // The subscription is known from the credential, no need to build a client on the controller for it
+        final String subscriptionId = token.getSubscriptionId();
         AzureACSPlugin.sendEventFor(Constants.AI_START_DEPLOY,
                 aiType,
                 jobContext.getRun(),
-                "Subscription", AppInsightsUtils.hash(azureClient.subscriptionId()),
+                "Subscription", AppInsightsUtils.hash(subscriptionId),
                 "ResourceGroup", AppInsightsUtils.hash(resourceGroupName),
                 "ContainerServiceName", AppInsightsUtils.hash(containerServiceName));
 
@@ -60,23 +68,53 @@ public class GetContainerServiceInfoCommand
         }
 
         context.logStatus(Messages.GetContainserServiceInfoCommand_getFQDN());
+
+        final ContainerServiceMetadataCache metadataCache = ContainerServiceMetadataCache.get();
+        ContainerServiceMetadata metadata = metadataCache.lookup(subscriptionId, resourceGroupName,
+                containerServiceName, AzureACSGlobalConfiguration.get().getMetadataCacheMinutes());
+        if (isReusable(metadata, configuredType)) {
+            PrintStream logger = taskListener.getLogger();
+            logger.println(Messages.GetContainserServiceInfoCommand_cachedMetadata(
+                    TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - metadata.getFetchedAt())));
+            logger.println(Messages.GetContainserServiceInfoCommand_orchestratorType(configuredType));
+            logger.println(Messages.GetContainserServiceInfoCommand_fqdn(metadata.getMasterFqdn()));
+            logger.println(Messages.GetContainserServiceInfoCommand_adminUser(metadata.getAdminUsername()));
+            context.setMgmtFQDN(metadata.getMasterFqdn());
+            context.setCachedMetadataSubscriptionId(subscriptionId);
+            context.setCommandState(CommandState.Success);
+            return;
+        }
+
         try {
             TaskResult taskResult = workspace.act(new MasterToSlaveCallable<TaskResult, RuntimeException>() {
                 @Override
                 public TaskResult call() throws RuntimeException {
                     PrintStream logger = taskListener.getLogger();
 
-                    Azure azureClient = AzureHelper.buildClient(token);
+                    Azure azureClient = AzureHelper.buildClient(azureCredentialsId, token, transport, logger);
                     return getAcsInfo(azureClient, resourceGroupName, containerServiceName, configuredType, logger);
                 }
             });
 
             context.setCommandState(taskResult.commandState);
             if (taskResult.commandState.isError()) {
+                metadataCache.invalidate(subscriptionId, resourceGroupName, containerServiceName);
                 return;
             }
 
             context.setMgmtFQDN(taskResult.fqdn);
+
+            // The orchestrator type is verified to be the configured one on success. Keep the network resource IDs
+            // recorded by the previous deployments, they are verified on use.
+            metadata = metadataCache.peek(subscriptionId, resourceGroupName, containerServiceName);
+            if (metadata == null) {
+                metadata = new ContainerServiceMetadata();
+            }
+            metadata.setOrchestratorType(configuredType.toString());
+            metadata.setMasterFqdn(taskResult.fqdn);
+            metadata.setAdminUsername(taskResult.adminUsername);
+            metadata.setFetchedAt(System.currentTimeMillis());
+            metadataCache.put(subscriptionId, resourceGroupName, containerServiceName, metadata);
         } catch (Exception ex) {
             if (ex instanceof InterruptedException) {
                 Thread.currentThread().interrupt();
@@ -89,6 +127,13 @@ public class GetContainerServiceInfoCommand
         }
     }
 
+    @VisibleForTesting
+    static boolean isReusable(ContainerServiceMetadata metadata, ContainerServiceOrchestratorTypes configuredType) {
+        // A type mismatch may be caused by stale metadata, let Azure give the final answer in that case
+        return metadata != null && configuredType != null
+                && configuredType.toString().equalsIgnoreCase(metadata.getOrchestratorType());
+    }
+
     @VisibleForTesting
     TaskResult getAcsInfo(
             Azure azureClient,
@@ -169,6 +214,12 @@ public class GetContainerServiceInfoCommand
 
         void setMgmtFQDN(String mgmtFQDN);
 
+        /**
+         * @param subscriptionId the subscription of the container service, whose cached metadata gave the management
+         *                       FQDN, so that it can be dropped if the deployment fails
+         */
+        void setCachedMetadataSubscriptionId(String subscriptionId);
+
         ContainerServiceOrchestratorTypes getOrchestratorType();
 
         String getContainerServiceType();
@@ -11,6 +11,7 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeType;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableMap;
 import com.jcraft.jsch.JSchException;
@@ -39,13 +40,24 @@ import org.apache.commons.lang.StringUtils;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
 import java.io.Serializable;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static com.microsoft.jenkins.acs.util.DeployHelper.encodeURIPath;
 import static com.microsoft.jenkins.acs.util.DeployHelper.escapeSingleQuote;
@@ -54,6 +66,17 @@ public class MarathonDeploymentCommand
         implements ICommand<MarathonDeploymentCommand.IMarathonDeploymentCommandData>, Serializable {
     private static final long serialVersionUID = 1L;
 
+    private static final String GROUP_ID_SEGMENT = "[a-z0-9]([a-z0-9.-]*[a-z0-9])?";
+    private static final Pattern GROUP_ID_PATTERN =
+            Pattern.compile("^" + GROUP_ID_SEGMENT + "(/" + GROUP_ID_SEGMENT + ")*$");
+
+    private static final Pattern HEADERS_END = Pattern.compile("\\r?\\n\\r?\\n");
+    private static final Pattern STATUS_LINE = Pattern.compile("^HTTP/\\S+\\s+(\\d{3})");
+
+    private static final long INITIAL_POLL_INTERVAL_MILLIS = 1000;
+    private static final long MAX_POLL_INTERVAL_MILLIS = 15000;
+    private static final int MAX_RESPONSE_LENGTH = 500;
+
     @Override
     public void execute(IMarathonDeploymentCommandData context) {
         JobContext jobContext = context.getJobContext();
@@ -65,12 +88,15 @@ public class MarathonDeploymentCommand
         final String dockerCredentialsPath = context.getDcosDockerCredentialsPath();
         final boolean dcosDockerCredenditalsPathShared = context.isDcosDockerCredenditalsPathShared();
         final boolean enableSubstitution = context.isEnableConfigSubstitution();
+        final boolean rollingUpdate = Constants.MARATHON_UPDATE_ROLLING.equals(context.getDcosUpdateStrategy());
+        final int deploymentTimeoutMinutes = context.getDcosDeploymentTimeoutMinutes();
         final String credentialsDirectoryName = nameForBuild(jobContext);
         final DeploymentConfig.Factory deploymentConfigFactory =
                 new DeploymentConfig.Factory(context.getConfigFilePaths());
         final ContainerServiceOrchestratorTypes orchestratorType = context.getOrchestratorType();
 
         try {
+            final String groupId = normalizeGroupId(envVars.expand(context.getDcosMarathonGroupId()));
             final List<ResolvedDockerRegistryEndpoint> dockerCredentials =
                     context.resolvedDockerRegistryEndpoints(jobContext.getRun().getParent());
 
@@ -107,40 +133,22 @@ public class MarathonDeploymentCommand
                                         logger);
                         result.extraEnvVars.putAll(extraEnvVars);
 
-                        for (FilePath configPath : configPaths) {
-                            String deployedFilename = DeployHelper.generateRandomDeploymentFileName("json");
-                            logger.println(Messages.MarathonDeploymentCommand_copyConfigFileTo(
-                                    configPath.toURI(), connected.getHost(), deployedFilename));
-
-                            ByteArrayInputStream in = DeployHelper.replaceMacro(
-                                    configPath.read(), envVars, enableSubstitution);
-
-                            connected.copyTo(in, deployedFilename);
-                            in.reset();
-                            String appId = JsonHelper.getMarathonAppId(in);
-                            //ignore if app does not exist
-                            logger.println(Messages.MarathonDeploymentCommand_deletingApp(appId));
-                            connected.execRemote(String.format(
-                                    "curl -i -X DELETE 'http://localhost/marathon/v2/apps/%s'",
-                                    escapeSingleQuote(appId)));
-                            logger.println(Messages.MarathonDeploymentCommand_deployingApp(deployedFilename, appId));
-                            // NB. about "?force=true"
-                            // Sometimes the deployment gets rejected after the previous delete of the same
-                            // application ID with the following message:
-                            //
-                            // App is locked by one or more deployments. Override with the option '?force=true'.
-                            // View details at '/v2/deployments/<DEPLOYMENT_ID>'.
-                            connected.execRemote(String.format(
-                                    "curl -i -H 'Content-Type: application/json' "
-                                            + "-d@'%s' http://localhost/marathon/v2/apps?force=true",
-                                    escapeSingleQuote(deployedFilename)));
-
-                            logger.println(Messages.MarathonDeploymentCommand_removeTempFile(deployedFilename));
-
-                            connected.execRemote(String.format("rm -f -- '%s'", escapeSingleQuote(deployedFilename)));
-
-                            result.commandState = CommandState.Success;
+                        final List<PendingDeployment> deployments =
+                                deploymentTimeoutMinutes > 0 ? new ArrayList<PendingDeployment>() : null;
+                        if (groupId == null) {
+                            deployApps(connected, configPaths, envVars, enableSubstitution, rollingUpdate,
+                                    deployments, logger);
+                        } else {
+                            deployGroup(connected, groupId, configPaths, envVars, enableSubstitution,
+                                    deployments, logger);
+                        }
+
+                        if (deployments != null && !waitForDeployments(connected, deployments,
+                                deploymentTimeoutMinutes, result.rolloutSeconds, logger)) {
+                            result.commandState = CommandState.HasError;
+                            return result;
                         }
+                        result.commandState = CommandState.Success;
                     }
                     return result;
                 }
@@ -150,6 +158,15 @@ public class MarathonDeploymentCommand
                 EnvironmentInjector.inject(jobContext.getRun(), envVars, entry.getKey(), entry.getValue());
             }
 
+            for (Map.Entry<String, Long> entry : taskResult.rolloutSeconds.entrySet()) {
+                EnvironmentInjector.inject(jobContext.getRun(), envVars,
+                        rolloutSecondsVariable(entry.getKey()), String.valueOf(entry.getValue()));
+                AzureACSPlugin.sendEventFor(Constants.AI_ROLLED_OUT, Constants.AI_DCOS, jobContext.getRun(),
+                        Constants.AI_FQDN, AppInsightsUtils.hash(host),
+                        Constants.AI_APP_ID, AppInsightsUtils.hash(entry.getKey()),
+                        Constants.AI_DURATION_SECONDS, String.valueOf(entry.getValue()));
+            }
+
             String action = taskResult.commandState.isError() ? Constants.AI_DEPLOY_FAILED : Constants.AI_DEPLOYED;
             AzureACSPlugin.sendEventFor(action, Constants.AI_DCOS, jobContext.getRun(),
                     Constants.AI_FQDN, AppInsightsUtils.hash(host));
@@ -166,6 +183,446 @@ public class MarathonDeploymentCommand
         }
     }
 
+    /**
+     * Deploy each of the applications with its own requests to Marathon.
+     *
+     * @param rollingUpdate whether to update the existing applications in place, rather than delete and create them
+     * @param deployments   the list to add the deployments started to, or {@code null} if they are not waited for
+     * @throws IllegalStateException if Marathon rejected a rolling update, or any update when they are waited for
+     */
+    private static void deployApps(
+            SSHClient connected,
+            FilePath[] configPaths,
+            EnvVars envVars,
+            boolean enableSubstitution,
+            boolean rollingUpdate,
+            List<PendingDeployment> deployments,
+            PrintStream logger) throws Exception {
+        for (FilePath configPath : configPaths) {
+            String deployedFilename = DeployHelper.generateRandomDeploymentFileName("json");
+            logger.println(Messages.MarathonDeploymentCommand_copyConfigFileTo(
+                    configPath.toURI(), connected.getHost(), deployedFilename));
+
+            ByteArrayInputStream in = DeployHelper.replaceMacro(
+                    configPath.read(), envVars, enableSubstitution);
+
+            connected.copyTo(in, deployedFilename);
+            in.reset();
+            String appId = JsonHelper.getMarathonAppId(in);
+            if (rollingUpdate) {
+                logger.println(Messages.MarathonDeploymentCommand_updatingApp(deployedFilename, appId));
+            } else {
+                //ignore if app does not exist
+                logger.println(Messages.MarathonDeploymentCommand_deletingApp(appId));
+                connected.execRemote(String.format(
+                        "curl -i -X DELETE 'http://localhost/marathon/v2/apps/%s'",
+                        escapeSingleQuote(appId)));
+                logger.println(Messages.MarathonDeploymentCommand_deployingApp(deployedFilename, appId));
+            }
+            final long submittedAt = System.nanoTime();
+            final String response = connected.execRemote(deployAppCommand(deployedFilename, appId, rollingUpdate));
+            logger.println(Messages.MarathonDeploymentCommand_removeTempFile(deployedFilename));
+
+            connected.execRemote(String.format("rm -f -- '%s'", escapeSingleQuote(deployedFilename)));
+
+            // The rolling updates are opt-in, so their responses are always checked, while the ones of the
+            // delete-then-create updates are only checked when waited for, as the existing jobs never relied on them
+            if (rollingUpdate || deployments != null) {
+                final PendingDeployment deployment = trackDeployment(appId, false, response, submittedAt);
+                if (deployments != null) {
+                    deployments.add(deployment);
+                }
+            }
+        }
+    }
+
+    @VisibleForTesting
+    static String deployAppCommand(String deployedFilename, String appId, boolean rollingUpdate) {
+        if (rollingUpdate) {
+            // PUT creates the app if it does not exist, or starts a rolling upgrade following its upgradeStrategy.
+            // "?force=true" lets the update supersede a deployment of the app still in progress.
+            return String.format(
+                    "curl -i -X PUT -H 'Content-Type: application/json' "
+                            + "-d@'%s' 'http://localhost/marathon/v2/apps/%s?force=true'",
+                    escapeSingleQuote(deployedFilename), escapeSingleQuote(StringUtils.stripStart(appId, "/")));
+        }
+        // NB. about "?force=true"
+        // Sometimes the deployment gets rejected after the previous delete of the same
+        // application ID with the following message:
+        //
+        // App is locked by one or more deployments. Override with the option '?force=true'.
+        // View details at '/v2/deployments/<DEPLOYMENT_ID>'.
+        return String.format(
+                "curl -i -H 'Content-Type: application/json' "
+                        + "-d@'%s' http://localhost/marathon/v2/apps?force=true",
+                escapeSingleQuote(deployedFilename));
+    }
+
+    /**
+     * Deploy all the applications as a single Marathon group, with one config upload and one request, so that
+     * Marathon schedules the applications in parallel.
+     *
+     * @param deployments the list to add the deployment started to, or {@code null} if it is not waited for
+     * @throws IllegalStateException if Marathon rejected the group update
+     */
+    private static void deployGroup(
+            SSHClient connected,
+            String groupId,
+            FilePath[] configPaths,
+            EnvVars envVars,
+            boolean enableSubstitution,
+            List<PendingDeployment> deployments,
+            PrintStream logger) throws Exception {
+        final ObjectMapper mapper = new ObjectMapper();
+        final List<JsonNode> apps = new ArrayList<>(configPaths.length);
+        for (FilePath configPath : configPaths) {
+            try (InputStream in = DeployHelper.replaceMacro(configPath.read(), envVars, enableSubstitution)) {
+                final JsonNode app = mapper.readTree(in);
+                checkGroupApp(groupId, app, configPath.getRemote());
+                apps.add(app);
+            }
+        }
+
+        final String deployedFilename = DeployHelper.generateRandomDeploymentFileName("json");
+        logger.println(Messages.MarathonDeploymentCommand_deployingGroup(apps.size(), groupId, deployedFilename));
+        connected.copyTo(new ByteArrayInputStream(
+                buildGroupDefinition(groupId, apps).getBytes(StandardCharsets.UTF_8)),
+                deployedFilename);
+        // The group update replaces the apps in the group, and Marathon rolls them out in parallel. The
+        // temporary file is removed in the same session to keep the remote round trips constant.
+        final long submittedAt = System.nanoTime();
+        final String response = connected.execRemote(String.format(
+                "curl -i -X PUT -H 'Content-Type: application/json' -d@'%1$s' "
+                        + "'http://localhost/marathon/v2/groups%2$s?force=true'; rm -f -- '%1$s'",
+                escapeSingleQuote(deployedFilename), groupId));
+        // The group deployment is opt-in, so its response is always checked
+        final PendingDeployment deployment = trackDeployment(groupId, true, response, submittedAt);
+        if (deployments != null) {
+            deployments.add(deployment);
+        }
+    }
+
+    /**
+     * Check the response of an app or group update, and get the deployment it started.
+     *
+     * @param response the output of {@code curl -i}, with the status line and the headers
+     * @throws IllegalStateException if Marathon rejected the request, or did not start a deployment for it
+     */
+    @VisibleForTesting
+    static PendingDeployment trackDeployment(String appId, boolean group, String response, long submittedAt) {
+        final int status = parseStatusCode(response);
+        if (status < HttpURLConnection.HTTP_OK || status >= HttpURLConnection.HTTP_MULT_CHOICE) {
+            throw new IllegalStateException(Messages.MarathonDeploymentCommand_deploymentRejected(
+                    appId, status, StringUtils.abbreviate(
+                            StringUtils.defaultString(responseBody(response), response), MAX_RESPONSE_LENGTH)));
+        }
+        final String deploymentId = parseDeploymentId(response);
+        if (deploymentId == null) {
+            throw new IllegalStateException(Messages.MarathonDeploymentCommand_deploymentIdNotFound(appId));
+        }
+        return new PendingDeployment(deploymentId, appId, group, submittedAt);
+    }
+
+    /**
+     * Poll the running deployments of Marathon with backoff, until all the given deployments are finished or the
+     * deadline is reached. A failed poll is retried, as if the deployments were still running.
+     * <p>
+     * A deployment also disappears when another forced update of the same app or group supersedes it, so once it is
+     * gone, the app (or each app in the group) is only considered rolled out when it has no deployment left and all
+     * its instances are running, and healthy if it has health checks.
+     *
+     * @param rolloutSeconds the map to fill with the time taken by each of the deployments finished, in seconds
+     * @return whether all the deployments finished before the deadline
+     */
+    @VisibleForTesting
+    static boolean waitForDeployments(
+            SSHClient connected,
+            List<PendingDeployment> deployments,
+            int timeoutMinutes,
+            Map<String, Long> rolloutSeconds,
+            PrintStream logger) throws Exception {
+        final long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(timeoutMinutes);
+        final List<PendingDeployment> pending = new ArrayList<>(deployments);
+        long interval = INITIAL_POLL_INTERVAL_MILLIS;
+        while (!pending.isEmpty()) {
+            logger.println(Messages.MarathonDeploymentCommand_waitingForDeployments(pending.size()));
+            final Set<String> running = pollRunningDeployments(connected, deadline, logger);
+            for (Iterator<PendingDeployment> it = pending.iterator(); running != null && it.hasNext();) {
+                final PendingDeployment deployment = it.next();
+                if (!running.contains(deployment.id) && isSettled(connected, deployment, deadline, logger)) {
+                    final long seconds =
+                            TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - deployment.submittedAt);
+                    logger.println(Messages.MarathonDeploymentCommand_deploymentFinished(
+                            deployment.appId, deployment.id, seconds));
+                    rolloutSeconds.put(deployment.appId, seconds);
+                    it.remove();
+                }
+            }
+            if (pending.isEmpty()) {
+                break;
+            }
+
+            final long now = System.nanoTime();
+            final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - now);
+            if (remaining <= 0) {
+                for (PendingDeployment deployment : pending) {
+                    logger.println(Messages.MarathonDeploymentCommand_deploymentTimeout(
+                            deployment.appId, deployment.id, timeoutMinutes));
+                }
+                return false;
+            }
+            Thread.sleep(Math.min(interval, remaining));
+            interval = Math.min(interval * 2, MAX_POLL_INTERVAL_MILLIS);
+        }
+        return true;
+    }
+
+    /**
+     * Limit a poll to the time left before the deadline, so that a hung request cannot hold the build past it. Each
+     * poll is also kept within the max poll interval, and a poll made at the deadline still gets a second.
+     *
+     * @return the value for {@code curl --max-time}, in seconds
+     */
+    @VisibleForTesting
+    static long pollMaxTimeSeconds(long deadline) {
+        final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        final long millis = Math.min(remaining, MAX_POLL_INTERVAL_MILLIS);
+        // Round up, so that the last poll is not cut short
+        return Math.max(1, (millis + 999) / 1000);
+    }
+
+    /**
+     * @return the IDs of the running deployments, or {@code null} if they cannot be read this time
+     */
+    private static Set<String> pollRunningDeployments(SSHClient connected, long deadline, PrintStream logger) {
+        String output;
+        try {
+            output = connected.execRemote(String.format(
+                    "curl -sS --max-time %d http://localhost/marathon/v2/deployments",
+                    pollMaxTimeSeconds(deadline)));
+        } catch (Exception e) {
+            output = e.getMessage();
+        }
+        final Set<String> running = parseRunningDeployments(output);
+        if (running == null) {
+            logger.println(Messages.MarathonDeploymentCommand_deploymentsPollFailed(
+                    StringUtils.abbreviate(StringUtils.trimToEmpty(output), MAX_RESPONSE_LENGTH)));
+        }
+        return running;
+    }
+
+    /**
+     * Check whether the app or group of a deployment that is no longer running has been rolled out.
+     */
+    private static boolean isSettled(
+            SSHClient connected, PendingDeployment deployment, long deadline, PrintStream logger) {
+        final String url = deployment.group
+                ? "http://localhost/marathon/v2/groups" + deployment.appId
+                + "?embed=group.apps&embed=group.apps.counts&embed=group.apps.deployments"
+                : "http://localhost/marathon/v2/apps/" + StringUtils.stripStart(deployment.appId, "/");
+        boolean settled;
+        try {
+            settled = isSettled(connected.execRemote(String.format(
+                    "curl -sS --max-time %d '%s'", pollMaxTimeSeconds(deadline), escapeSingleQuote(url))));
+        } catch (Exception e) {
+            settled = false;
+        }
+        if (!settled && !deployment.superseded) {
+            deployment.superseded = true;
+            logger.println(Messages.MarathonDeploymentCommand_deploymentSuperseded(deployment.appId, deployment.id));
+        }
+        return settled;
+    }
+
+    /**
+     * @param json the app, as returned by {@code GET /v2/apps/<id>}, or the group with its apps embedded
+     * @return whether the app, or all the apps in the group, have no deployment in progress and all their instances
+     * running and healthy
+     */
+    @VisibleForTesting
+    static boolean isSettled(String json) {
+        final JsonNode root = readJsonBody(json);
+        if (root == null) {
+            return false;
+        }
+        if (root.has("app")) {
+            return isAppSettled(root.get("app"));
+        }
+        final JsonNode apps = root.get("apps");
+        if (apps == null || !apps.isArray()) {
+            return false;
+        }
+        for (JsonNode app : apps) {
+            if (!isAppSettled(app)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAppSettled(JsonNode app) {
+        final JsonNode deployments = app.get("deployments");
+        if (deployments == null || !deployments.isArray() || deployments.size() > 0) {
+            return false;
+        }
+        final int instances = app.path("instances").asInt();
+        if (app.path("tasksRunning").asInt() < instances) {
+            return false;
+        }
+        final JsonNode healthChecks = app.get("healthChecks");
+        return healthChecks == null || healthChecks.size() == 0 || app.path("tasksHealthy").asInt() >= instances;
+    }
+
+    /**
+     * Read the deployment ID from the response of an app or group update, which is either the app with its
+     * {@code deployments}, or the {@code deploymentId} with the version.
+     *
+     * @param response the output of {@code curl -i}, with the status line and the headers
+     * @return the deployment ID, or {@code null} if not found, e.g., the request is rejected
+     */
+    @VisibleForTesting
+    static String parseDeploymentId(String response) {
+        final JsonNode root = readJsonBody(response);
+        if (root == null) {
+            return null;
+        }
+        final JsonNode deploymentId = root.get("deploymentId");
+        if (deploymentId != null && deploymentId.isTextual()) {
+            return deploymentId.textValue();
+        }
+        final JsonNode deployments = root.get("deployments");
+        if (deployments != null && deployments.isArray() && deployments.size() > 0) {
+            final JsonNode id = deployments.get(0).get("id");
+            if (id != null && id.isTextual()) {
+                return id.textValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param json the response of {@code GET /v2/deployments}
+     * @return the IDs of the running deployments, or {@code null} if the response is not a list of deployments
+     */
+    @VisibleForTesting
+    static Set<String> parseRunningDeployments(String json) {
+        final Set<String> ids = new HashSet<>();
+        final JsonNode root = readJsonBody(json);
+        if (root == null || !root.isArray()) {
+            return null;
+        }
+        for (JsonNode deployment : root) {
+            final JsonNode id = deployment.get("id");
+            if (id != null && id.isTextual()) {
+                ids.add(id.textValue());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @param response the output of {@code curl -i}
+     * @return the status code of the final response, or {@code -1} if there is no status line
+     */
+    @VisibleForTesting
+    static int parseStatusCode(String response) {
+        String remaining = StringUtils.trimToEmpty(response);
+        int status = -1;
+        // Skip the interim responses, such as 100 Continue
+        while (remaining.startsWith("HTTP/")) {
+            final Matcher statusLine = STATUS_LINE.matcher(remaining);
+            status = statusLine.find() ? Integer.parseInt(statusLine.group(1)) : -1;
+            final Matcher m = HEADERS_END.matcher(remaining);
+            if (!m.find()) {
+                break;
+            }
+            remaining = remaining.substring(m.end()).trim();
+        }
+        return status;
+    }
+
+    /**
+     * @return the body of the final response, with the status lines and the headers skipped, or {@code null} if the
+     * headers are incomplete
+     */
+    private static String responseBody(String response) {
+        String body = StringUtils.trimToEmpty(response);
+        // Skip the status line and headers of each response, including the interim ones such as 100 Continue
+        while (body.startsWith("HTTP/")) {
+            final Matcher m = HEADERS_END.matcher(body);
+            if (!m.find()) {
+                return null;
+            }
+            body = body.substring(m.end()).trim();
+        }
+        return body;
+    }
+
+    private static JsonNode readJsonBody(String response) {
+        final String body = responseBody(response);
+        if (StringUtils.isEmpty(body)) {
+            return null;
+        }
+        try {
+            return new ObjectMapper().readTree(body);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Check that the config is a single app that belongs to the group, as Marathon rejects the whole group update
+     * otherwise.
+     *
+     * @param groupId    the absolute group ID
+     * @param app        the parsed config
+     * @param configPath the path of the config, for the error message
+     * @throws IllegalArgumentException if the config is not an app with an ID, or its absolute ID is out of the group
+     */
+    @VisibleForTesting
+    static void checkGroupApp(String groupId, JsonNode app, String configPath) {
+        if (app == null || !app.isObject()) {
+            throw new IllegalArgumentException(Messages.MarathonDeploymentCommand_groupAppNotObject(configPath));
+        }
+        final JsonNode id = app.get("id");
+        if (id == null || !id.isTextual() || StringUtils.isBlank(id.textValue())) {
+            throw new IllegalArgumentException(Messages.MarathonDeploymentCommand_groupAppIdMissing(configPath));
+        }
+        if (app.has("apps") || app.has("groups")) {
+            throw new IllegalArgumentException(Messages.MarathonDeploymentCommand_groupAppIsGroup(configPath));
+        }
+        final String appId = id.textValue();
+        if (appId.startsWith("/") && !appId.startsWith(groupId + "/")) {
+            throw new IllegalArgumentException(
+                    Messages.MarathonDeploymentCommand_groupAppOutOfGroup(configPath, appId, groupId));
+        }
+    }
+
+    @VisibleForTesting
+    static String buildGroupDefinition(String groupId, List<JsonNode> apps) {
+        final ObjectNode group = new ObjectMapper().createObjectNode();
+        group.put("id", groupId);
+        group.putArray("apps").addAll(apps);
+        return group.toString();
+    }
+
+    /**
+     * @param groupId the Marathon group ID configured, with or without the leading slash
+     * @return the absolute group ID, or {@code null} if the group deployment is not enabled
+     * @throws IllegalArgumentException if the group ID is not a valid Marathon path
+     */
+    @VisibleForTesting
+    static String normalizeGroupId(String groupId) {
+        final String id = StringUtils.strip(StringUtils.trimToEmpty(groupId), "/");
+        if (id.isEmpty()) {
+            return null;
+        }
+        if (!GROUP_ID_PATTERN.matcher(id).matches()) {
+            throw new IllegalArgumentException(Messages.MarathonDeploymentCommand_invalidGroupId(groupId));
+        }
+        return "/" + id;
+    }
+
     @VisibleForTesting
     Map<String, String> copyCredentialsToAgents(
             SSHClient client,
@@ -294,6 +751,17 @@ public class MarathonDeploymentCommand
         return "/home/" + linuxAdminUsername + "/acs-plugin-dcos.docker/" + credentialsDirectoryName;
     }
 
+    /**
+     * @param appId the Marathon app or group ID
+     * @return the name of the build environment variable that records the rollout time of the app
+     */
+    @VisibleForTesting
+    static String rolloutSecondsVariable(String appId) {
+        final String name = StringUtils.strip(
+                StringUtils.defaultString(appId).toUpperCase(Locale.ENGLISH).replaceAll("[^0-9A-Z]+", "_"), "_");
+        return Constants.MARATHON_ROLLOUT_SECONDS_PREFIX + name;
+    }
+
     @VisibleForTesting
     static String nameForBuild(JobContext jobContext) {
         String runName = StringUtils.trimToEmpty(
@@ -309,6 +777,36 @@ public class MarathonDeploymentCommand
 
         private CommandState commandState = CommandState.Unknown;
         private final Map<String, String> extraEnvVars = new HashMap<>();
+        private final Map<String, Long> rolloutSeconds = new LinkedHashMap<>();
+    }
+
+    /**
+     * A Marathon deployment submitted by this build.
+     */
+    @VisibleForTesting
+    static final class PendingDeployment {
+        private final String id;
+        private final String appId;
+        private final boolean group;
+        private final long submittedAt;
+        // whether the deployment disappeared before the app or group settled, which is logged once
+        private boolean superseded;
+
+        /**
+         * @param appId       the app ID, or the group ID if {@code group} is set
+         * @param submittedAt the {@link System#nanoTime()} when the deployment was submitted
+         */
+        PendingDeployment(String id, String appId, boolean group, long submittedAt) {
+            this.id = id;
+            this.appId = appId;
+            this.group = group;
+            this.submittedAt = submittedAt;
+        }
+
+        @VisibleForTesting
+        String getId() {
+            return id;
+        }
     }
 
     public interface IMarathonDeploymentCommandData extends IBaseCommandData {
@@ -326,6 +824,12 @@ public class MarathonDeploymentCommand
 
         boolean isDcosDockerCredenditalsPathShared();
 
+        String getDcosMarathonGroupId();
+
+        String getDcosUpdateStrategy();
+
+        int getDcosDeploymentTimeoutMinutes();
+
         List<ResolvedDockerRegistryEndpoint> resolvedDockerRegistryEndpoints(Item context) throws IOException;
     }
 }
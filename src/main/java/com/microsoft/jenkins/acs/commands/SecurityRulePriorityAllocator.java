@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.acs.commands;
+
+import com.microsoft.azure.management.network.NetworkSecurityRule;
+import com.microsoft.azure.management.network.SecurityRuleAccess;
+import com.microsoft.azure.management.network.SecurityRuleDirection;
+import com.microsoft.jenkins.acs.Messages;
+import com.microsoft.jenkins.acs.util.Constants;
+
+import java.util.BitSet;
+import java.util.Collection;
+
+/**
+ * Hands out the priorities of the new inbound security rules created for the service ports.
+ * <p>
+ * The priorities keep growing by {@link Constants#PRIORITY_STEP} from the max one in the security group as long as
+ * they fit, so that the rules of a fresh cluster stay in the familiar order. Once the end of the priority range is
+ * reached, the free slots left by the removed rules are reused instead of failing the deployment. The allow rules are
+ * always placed after the inbound deny rules, so that a port denied by the user explicitly stays denied.
+ */
+final class SecurityRulePriorityAllocator {
+    private final BitSet used = new BitSet(Constants.LOWEST_PRIORITY + 1);
+    private final int highestDeny;
+    private int last;
+
+    /**
+     * @param rules       the security rules in the security group
+     * @param maxPriority the max priority number of the rules, or {@link Integer#MIN_VALUE} if there is no rule
+     */
+    SecurityRulePriorityAllocator(Collection<NetworkSecurityRule> rules, int maxPriority) {
+        int maxDeny = Integer.MIN_VALUE;
+        for (NetworkSecurityRule rule : rules) {
+            if (!SecurityRuleDirection.INBOUND.equals(rule.direction())) {
+                // Priorities are unique per direction only
+                continue;
+            }
+            final int priority = rule.priority();
+            if (priority >= 0 && priority <= Constants.LOWEST_PRIORITY) {
+                used.set(priority);
+            }
+            if (!SecurityRuleAccess.ALLOW.equals(rule.access()) && priority > maxDeny) {
+                maxDeny = priority;
+            }
+        }
+        this.highestDeny = maxDeny;
+        this.last = maxPriority == Integer.MIN_VALUE
+                ? Constants.HIGHEST_PRIORITY - Constants.PRIORITY_STEP
+                : maxPriority;
+    }
+
+    /**
+     * @return the priority of the next rule
+     * @throws EnablePortCommand.InvalidConfigException if there is no free priority after the inbound deny rules
+     */
+    int next() throws EnablePortCommand.InvalidConfigException {
+        int priority;
+        if (last <= Constants.LOWEST_PRIORITY - Constants.PRIORITY_STEP
+                && last + Constants.PRIORITY_STEP > highestDeny
+                && !used.get(last + Constants.PRIORITY_STEP)) {
+            priority = last + Constants.PRIORITY_STEP;
+            last = priority;
+        } else {
+            // Fill the gaps after the inbound deny rules
+            priority = used.nextClearBit(Math.max(highestDeny + 1, Constants.HIGHEST_PRIORITY));
+            if (priority > Constants.LOWEST_PRIORITY) {
+                throw new EnablePortCommand.InvalidConfigException(Messages.EnablePortCommand_exceedMaxPriority());
+            }
+        }
+        used.set(priority);
+        return priority;
+    }
+}
@@ -7,6 +7,7 @@ import hudson.FilePath;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -31,6 +32,20 @@ public abstract class DeploymentConfig implements Serializable {
     public abstract List<ServicePort> getServicePorts()
             throws IOException, InvalidFormatException, InterruptedException;
 
+    /**
+     * Get the service ports with the port ranges defined in the config files kept as is, rather than expanded to
+     * one {@link ServicePort} per port.
+     * <p>
+     * Orchestrators that support port ranges should override this method. The default implementation returns the
+     * {@link #getServicePorts()}.
+     *
+     * @return the service port ranges
+     */
+    public List<ServicePortRange> getServicePortRanges()
+            throws IOException, InvalidFormatException, InterruptedException {
+        return new ArrayList<ServicePortRange>(getServicePorts());
+    }
+
     public static final class InvalidFormatException extends Exception {
 
         public InvalidFormatException(String msg) {
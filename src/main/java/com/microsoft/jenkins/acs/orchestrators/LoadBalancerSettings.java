@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.acs.orchestrators;
+
+import com.microsoft.azure.management.network.LoadDistribution;
+import com.microsoft.jenkins.acs.Messages;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Load balancer tuning of a service port, read from the labels of the Marathon app or the Swarm service.
+ * <p>
+ * Each setting is read from the label {@code com.microsoft.azure.acs.lb.<setting>} applied to all the ports of the
+ * app or service, which may be overridden for a single host port by the label
+ * {@code com.microsoft.azure.acs.lb.<port>.<setting>}.
+ * The settings not specified are left as the plugin defaults, i.e., TCP probes with the Azure defaults, 5 minutes
+ * idle timeout, default load distribution and floating IP disabled on new rules.
+ * <ul>
+ * <li>{@code idleTimeout}: idle timeout of the connections in minutes, 4 to 30</li>
+ * <li>{@code loadDistribution}: {@code Default}, {@code SourceIP} or {@code SourceIPProtocol}</li>
+ * <li>{@code floatingIp}: {@code true} or {@code false}</li>
+ * <li>{@code probePath}: request path of an HTTP probe, e.g., {@code /health}, instead of the TCP probe</li>
+ * <li>{@code probeInterval}: probe interval in seconds, at least 5</li>
+ * <li>{@code probeCount}: number of failed probes before the backend is taken out of rotation</li>
+ * </ul>
+ */
+public final class LoadBalancerSettings implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final String LABEL_PREFIX = "com.microsoft.azure.acs.lb.";
+
+    public static final LoadBalancerSettings DEFAULT = new LoadBalancerSettings(null, null, null, null, null, null);
+
+    static final String IDLE_TIMEOUT = "idleTimeout";
+    static final String LOAD_DISTRIBUTION = "loadDistribution";
+    static final String FLOATING_IP = "floatingIp";
+    static final String PROBE_PATH = "probePath";
+    static final String PROBE_INTERVAL = "probeInterval";
+    static final String PROBE_COUNT = "probeCount";
+
+    private static final int MIN_IDLE_TIMEOUT_MINUTES = 4;
+    private static final int MAX_IDLE_TIMEOUT_MINUTES = 30;
+    private static final int MIN_PROBE_INTERVAL_SECONDS = 5;
+
+    private static final Pattern PORT_LABEL = Pattern.compile("^" + Pattern.quote(LABEL_PREFIX) + "(\\d+)\\.[^.]+$");
+
+    private static final List<LoadDistribution> LOAD_DISTRIBUTIONS = Arrays.asList(
+            LoadDistribution.DEFAULT, LoadDistribution.SOURCE_IP, LoadDistribution.SOURCE_IPPROTOCOL);
+
+    private final Integer idleTimeoutMinutes;
+    private final LoadDistribution loadDistribution;
+    private final Boolean floatingIp;
+    private final String probePath;
+    private final Integer probeIntervalSeconds;
+    private final Integer probeCount;
+
+    public LoadBalancerSettings(
+            Integer idleTimeoutMinutes,
+            LoadDistribution loadDistribution,
+            Boolean floatingIp,
+            String probePath,
+            Integer probeIntervalSeconds,
+            Integer probeCount) {
+        this.idleTimeoutMinutes = idleTimeoutMinutes;
+        this.loadDistribution = loadDistribution;
+        this.floatingIp = floatingIp;
+        this.probePath = probePath;
+        this.probeIntervalSeconds = probeIntervalSeconds;
+        this.probeCount = probeCount;
+    }
+
+    /**
+     * Read the settings of the given host port from the labels.
+     *
+     * @param labels   the labels of the app or service
+     * @param hostPort the host port, or {@code null} to read the settings applied to all ports only
+     * @return the settings, {@link #DEFAULT} if none is specified
+     * @throws DeploymentConfig.InvalidFormatException if any label has an invalid value
+     */
+    public static LoadBalancerSettings fromLabels(Map<String, String> labels, Integer hostPort)
+            throws DeploymentConfig.InvalidFormatException {
+        if (labels == null || labels.isEmpty()) {
+            return DEFAULT;
+        }
+
+        final String idleTimeout = label(labels, hostPort, IDLE_TIMEOUT);
+        final String distribution = label(labels, hostPort, LOAD_DISTRIBUTION);
+        final String floating = label(labels, hostPort, FLOATING_IP);
+        final String path = label(labels, hostPort, PROBE_PATH);
+        final String interval = label(labels, hostPort, PROBE_INTERVAL);
+        final String count = label(labels, hostPort, PROBE_COUNT);
+        if (idleTimeout == null && distribution == null && floating == null
+                && path == null && interval == null && count == null) {
+            return DEFAULT;
+        }
+
+        LoadDistribution loadDistribution = null;
+        if (distribution != null) {
+            for (LoadDistribution candidate : LOAD_DISTRIBUTIONS) {
+                if (candidate.toString().equalsIgnoreCase(distribution)) {
+                    loadDistribution = candidate;
+                }
+            }
+            if (loadDistribution == null) {
+                throw invalidLabel(LOAD_DISTRIBUTION, distribution);
+            }
+        }
+
+        Boolean floatingIp = null;
+        if (floating != null) {
+            if (!"true".equalsIgnoreCase(floating) && !"false".equalsIgnoreCase(floating)) {
+                throw invalidLabel(FLOATING_IP, floating);
+            }
+            floatingIp = Boolean.valueOf(floating);
+        }
+
+        if (path != null && !path.startsWith("/")) {
+            throw invalidLabel(PROBE_PATH, path);
+        }
+
+        return new LoadBalancerSettings(
+                parseInt(IDLE_TIMEOUT, idleTimeout, MIN_IDLE_TIMEOUT_MINUTES, MAX_IDLE_TIMEOUT_MINUTES),
+                loadDistribution,
+                floatingIp,
+                path,
+                parseInt(PROBE_INTERVAL, interval, MIN_PROBE_INTERVAL_SECONDS, Integer.MAX_VALUE),
+                parseInt(PROBE_COUNT, count, 1, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Read the settings of the host ports in the given range that have labels of their own.
+     *
+     * @param labels      the labels of the app or service
+     * @param hostPort    the first host port of the range
+     * @param hostPortEnd the last host port of the range
+     * @return the settings of the ports with port specific labels, by host port
+     * @throws DeploymentConfig.InvalidFormatException if any label has an invalid value
+     */
+    public static Map<Integer, LoadBalancerSettings> fromPortLabels(
+            Map<String, String> labels, int hostPort, int hostPortEnd)
+            throws DeploymentConfig.InvalidFormatException {
+        final Map<Integer, LoadBalancerSettings> settings = new TreeMap<>();
+        if (labels == null) {
+            return settings;
+        }
+        for (String key : labels.keySet()) {
+            final Matcher m = PORT_LABEL.matcher(key);
+            if (!m.matches()) {
+                continue;
+            }
+            final int port;
+            try {
+                port = Integer.parseInt(m.group(1));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (port >= hostPort && port <= hostPortEnd && !settings.containsKey(port)) {
+                settings.put(port, fromLabels(labels, port));
+            }
+        }
+        return settings;
+    }
+
+    private static String label(Map<String, String> labels, Integer hostPort, String setting) {
+        String value = null;
+        if (hostPort != null) {
+            value = labels.get(LABEL_PREFIX + hostPort + "." + setting);
+        }
+        if (value == null) {
+            value = labels.get(LABEL_PREFIX + setting);
+        }
+        return StringUtils.trimToNull(value);
+    }
+
+    private static Integer parseInt(String setting, String value, int min, int max)
+            throws DeploymentConfig.InvalidFormatException {
+        if (value == null) {
+            return null;
+        }
+        try {
+            final int result = Integer.parseInt(value);
+            if (result < min || result > max) {
+                throw invalidLabel(setting, value);
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            throw invalidLabel(setting, value);
+        }
+    }
+
+    private static DeploymentConfig.InvalidFormatException invalidLabel(String setting, String value) {
+        return new DeploymentConfig.InvalidFormatException(
+                Messages.LoadBalancerSettings_invalidLabel(LABEL_PREFIX + setting, value));
+    }
+
+    public Integer getIdleTimeoutMinutes() {
+        return idleTimeoutMinutes;
+    }
+
+    public LoadDistribution getLoadDistribution() {
+        return loadDistribution;
+    }
+
+    public Boolean getFloatingIp() {
+        return floatingIp;
+    }
+
+    /**
+     * @return the request path of the HTTP probe, or {@code null} if a TCP probe is used
+     */
+    public String getProbePath() {
+        return probePath;
+    }
+
+    public Integer getProbeIntervalSeconds() {
+        return probeIntervalSeconds;
+    }
+
+    public Integer getProbeCount() {
+        return probeCount;
+    }
+
+    /**
+     * @return whether the probe of the port is customized, rather than a TCP probe with the Azure defaults
+     */
+    public boolean hasProbeSettings() {
+        return probePath != null || probeIntervalSeconds != null || probeCount != null;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof LoadBalancerSettings)) {
+            return false;
+        }
+        return toString().equals(obj.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        final List<String> settings = new ArrayList<>();
+        append(settings, IDLE_TIMEOUT, idleTimeoutMinutes);
+        append(settings, LOAD_DISTRIBUTION, loadDistribution);
+        append(settings, FLOATING_IP, floatingIp);
+        append(settings, PROBE_PATH, probePath);
+        append(settings, PROBE_INTERVAL, probeIntervalSeconds);
+        append(settings, PROBE_COUNT, probeCount);
+        return StringUtils.join(settings, ",");
+    }
+
+    private static void append(List<String> settings, String name, Object value) {
+        if (value != null) {
+            settings.add(name + "=" + value);
+        }
+    }
+}
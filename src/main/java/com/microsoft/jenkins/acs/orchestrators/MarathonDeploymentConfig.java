@@ -11,8 +11,10 @@ import hudson.FilePath;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 public class MarathonDeploymentConfig extends DeploymentConfig {
 
@@ -42,6 +44,7 @@ public class MarathonDeploymentConfig extends DeploymentConfig {
                 if (node == null) {
                     throw new InvalidFormatException("no content");
                 }
+                final Map<String, String> appLabels = readLabels(node);
 
                 // Walk down the tree to find the `container.docker.portMappings` node
                 final String[] fieldKeys = new String[]{"container", "docker", "portMappings"};
@@ -81,11 +84,29 @@ public class MarathonDeploymentConfig extends DeploymentConfig {
                         protocol = Constants.UDP;
                     }
 
-                    servicePorts.add(new ServicePort(hostPort, containerPort, protocol));
+                    // The labels of the port mapping take precedence over the ones of the app
+                    final Map<String, String> labels = new HashMap<>(appLabels);
+                    labels.putAll(readLabels(element));
+
+                    servicePorts.add(new ServicePort(hostPort, containerPort, protocol,
+                            LoadBalancerSettings.fromLabels(labels, hostPort)));
                 }
             }
         }
 
         return servicePorts;
     }
+
+    private static Map<String, String> readLabels(JsonNode node) {
+        final Map<String, String> labels = new HashMap<>();
+        final JsonNode labelsNode = node.get("labels");
+        if (labelsNode != null) {
+            Iterator<Map.Entry<String, JsonNode>> fields = labelsNode.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                labels.put(field.getKey(), field.getValue().asText());
+            }
+        }
+        return labels;
+    }
 }
@@ -0,0 +1,171 @@
+package com.microsoft.jenkins.acs.orchestrators;
+
+import com.microsoft.azure.management.network.Protocol;
+import com.microsoft.azure.management.network.TransportProtocol;
+import com.microsoft.jenkins.acs.util.Constants;
+import com.microsoft.jenkins.acs.util.PortRangeSet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A range of consecutive host ports mapped to the same number of consecutive container ports, e.g.,
+ * {@code 30000-32000:30000-32000/tcp} in Docker Compose.
+ * <p>
+ * Keeping the range compact lets a mapping of thousands of ports be opened with a single security rule.
+ */
+public class ServicePortRange {
+
+    private final int hostPort;
+    private final int hostPortEnd;
+    private final int containerPort;
+    private final Protocol protocol;
+    private final LoadBalancerSettings loadBalancerSettings;
+    private final Map<Integer, LoadBalancerSettings> portSettings;
+
+    public ServicePortRange(int hostPort, int hostPortEnd, int containerPort, Protocol protocol) {
+        this(hostPort, hostPortEnd, containerPort, protocol, LoadBalancerSettings.DEFAULT);
+    }
+
+    public ServicePortRange(
+            int hostPort,
+            int hostPortEnd,
+            int containerPort,
+            Protocol protocol,
+            LoadBalancerSettings loadBalancerSettings) {
+        this(hostPort, hostPortEnd, containerPort, protocol, loadBalancerSettings,
+                Collections.<Integer, LoadBalancerSettings>emptyMap());
+    }
+
+    /**
+     * @param loadBalancerSettings the settings of all the ports in the range
+     * @param portSettings         the settings of the ports with labels of their own, by host port, which override
+     *                             the settings of the range
+     */
+    public ServicePortRange(
+            int hostPort,
+            int hostPortEnd,
+            int containerPort,
+            Protocol protocol,
+            LoadBalancerSettings loadBalancerSettings,
+            Map<Integer, LoadBalancerSettings> portSettings) {
+        if (hostPortEnd < hostPort) {
+            throw new IllegalArgumentException("Invalid host port range: " + hostPort + "-" + hostPortEnd);
+        }
+        this.hostPort = hostPort;
+        this.hostPortEnd = hostPortEnd;
+        this.containerPort = containerPort;
+        this.protocol = protocol;
+        this.loadBalancerSettings = loadBalancerSettings == null ? LoadBalancerSettings.DEFAULT : loadBalancerSettings;
+        this.portSettings = portSettings == null
+                ? Collections.<Integer, LoadBalancerSettings>emptyMap()
+                : Collections.unmodifiableMap(new TreeMap<>(portSettings));
+    }
+
+    public int getHostPort() {
+        return hostPort;
+    }
+
+    public int getHostPortEnd() {
+        return hostPortEnd;
+    }
+
+    public int getContainerPort() {
+        return containerPort;
+    }
+
+    public int getContainerPortEnd() {
+        return containerPort + hostPortEnd - hostPort;
+    }
+
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    public TransportProtocol getTransportProtocol() {
+        if (protocol.equals(Protocol.TCP)) {
+            return TransportProtocol.TCP;
+        } else if (protocol.equals(Constants.UDP)) {
+            return TransportProtocol.UDP;
+        } else {
+            return TransportProtocol.fromString(protocol.toString());
+        }
+    }
+
+    public LoadBalancerSettings getLoadBalancerSettings() {
+        return loadBalancerSettings;
+    }
+
+    /**
+     * @param port the host port in the range
+     * @return the settings of the given port, which may be overridden by the labels of the port
+     */
+    public LoadBalancerSettings getLoadBalancerSettings(int port) {
+        final LoadBalancerSettings settings = portSettings.get(port);
+        return settings == null ? loadBalancerSettings : settings;
+    }
+
+    public boolean isSinglePort() {
+        return hostPort == hostPortEnd;
+    }
+
+    /**
+     * @return the number of ports in the range
+     */
+    public int size() {
+        return hostPortEnd - hostPort + 1;
+    }
+
+    public PortRangeSet getHostPorts() {
+        return PortRangeSet.range(hostPort, hostPortEnd);
+    }
+
+    public List<ServicePort> toServicePorts() {
+        List<ServicePort> servicePorts = new ArrayList<>(size());
+        for (int p = hostPort; p <= hostPortEnd; p++) {
+            servicePorts.add(new ServicePort(p, containerPort + p - hostPort, protocol, getLoadBalancerSettings(p)));
+        }
+        return servicePorts;
+    }
+
+    @Override
+    public String toString() {
+        final String ports = isSinglePort()
+                ? String.format("%d:%d/%s", hostPort, containerPort, protocol)
+                : String.format("%d-%d:%d-%d/%s",
+                        hostPort, hostPortEnd, containerPort, getContainerPortEnd(), protocol);
+        final StringBuilder result = new StringBuilder(ports);
+        if (!LoadBalancerSettings.DEFAULT.equals(loadBalancerSettings)) {
+            result.append('[').append(loadBalancerSettings).append(']');
+        }
+        for (Map.Entry<Integer, LoadBalancerSettings> entry : portSettings.entrySet()) {
+            result.append('[').append(entry.getKey()).append(':').append(entry.getValue()).append(']');
+        }
+        return result.toString();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof ServicePortRange)) {
+            return false;
+        } else if (obj == this) {
+            return true;
+        } else {
+            ServicePortRange other = (ServicePortRange) obj;
+            return this.hostPort == other.hostPort
+                    && this.hostPortEnd == other.hostPortEnd
+                    && this.containerPort == other.containerPort
+                    && this.protocol == other.protocol
+                    && this.loadBalancerSettings.equals(other.loadBalancerSettings)
+                    && this.portSettings.equals(other.portSettings);
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
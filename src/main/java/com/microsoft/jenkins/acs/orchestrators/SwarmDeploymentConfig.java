@@ -12,6 +12,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -31,6 +32,16 @@ public class SwarmDeploymentConfig extends DeploymentConfig {
     @Override
     public List<ServicePort> getServicePorts() throws IOException, InvalidFormatException, InterruptedException {
         final ArrayList<ServicePort> servicePorts = new ArrayList<ServicePort>();
+        for (ServicePortRange range : getServicePortRanges()) {
+            servicePorts.addAll(range.toServicePorts());
+        }
+        return servicePorts;
+    }
+
+    @Override
+    public List<ServicePortRange> getServicePortRanges()
+            throws IOException, InvalidFormatException, InterruptedException {
+        final ArrayList<ServicePortRange> servicePorts = new ArrayList<ServicePortRange>();
 
         final FilePath[] configFiles = getConfigFiles();
         for (FilePath configFile : configFiles) {
@@ -59,13 +70,14 @@ public class SwarmDeploymentConfig extends DeploymentConfig {
                     if (!(portsNode instanceof List)) {
                         continue;
                     }
+                    final Map<String, String> labels = readLabels((Map) service);
 
                     List<Object> ports = (List<Object>) portsNode;
                     for (Object portNode : ports) {
                         if (portNode instanceof String) {
-                            servicePorts.addAll(parsePortShortSyntax((String) portNode));
+                            servicePorts.add(parsePortShortSyntax((String) portNode, labels));
                         } else if (portNode instanceof Map) {
-                            servicePorts.addAll(parsePortLongSyntax((Map) portNode));
+                            servicePorts.addAll(parsePortLongSyntax((Map) portNode, labels));
                         } else {
                             throw new InvalidFormatException(
                                     Messages.SwarmDeploymentConfig_invalidPortDefinition(
@@ -79,6 +91,37 @@ public class SwarmDeploymentConfig extends DeploymentConfig {
         return servicePorts;
     }
 
+    /**
+     * Read the labels of the service, i.e., the container labels and the service labels under {@code deploy}, either
+     * in the list ({@code key=value}) or the map form. The service labels take precedence.
+     */
+    private static Map<String, String> readLabels(Map service) {
+        final Map<String, String> labels = new HashMap<>();
+        addLabels(labels, service.get("labels"));
+        final Object deploy = service.get("deploy");
+        if (deploy instanceof Map) {
+            addLabels(labels, ((Map) deploy).get("labels"));
+        }
+        return labels;
+    }
+
+    private static void addLabels(Map<String, String> labels, Object node) {
+        if (node instanceof Map) {
+            for (Object entry : ((Map) node).entrySet()) {
+                final Map.Entry label = (Map.Entry) entry;
+                labels.put(String.valueOf(label.getKey()), String.valueOf(label.getValue()));
+            }
+        } else if (node instanceof List) {
+            for (Object label : (List) node) {
+                final String text = String.valueOf(label);
+                final int separator = text.indexOf('=');
+                if (separator > 0) {
+                    labels.put(text.substring(0, separator), text.substring(separator + 1));
+                }
+            }
+        }
+    }
+
     /**
      * Modified from https://github.com/docker/docker-py/blob/master/docker/utils/ports.py#L3 .
      */
@@ -96,12 +139,14 @@ public class SwarmDeploymentConfig extends DeploymentConfig {
     /**
      * Parse ports in short syntax.
      *
-     * @param def Ports definition in short syntax
-     * @return List of ServicePort
+     * @param def    Ports definition in short syntax
+     * @param labels Labels of the service
+     * @return ServicePortRange covering all the ports in the definition
      * @throws InvalidFormatException
      * @see <a href="https://docs.docker.com/compose/compose-file/#ports">Docker Compose - Ports</a>
      */
-    private List<ServicePort> parsePortShortSyntax(String def) throws InvalidFormatException {
+    private ServicePortRange parsePortShortSyntax(String def, Map<String, String> labels)
+            throws InvalidFormatException {
         final Matcher m = PATTERN_PORT_SPEC.matcher(def);
         if (!m.matches()) {
             throw new InvalidFormatException(Messages.SwarmDeploymentConfig_invalidPortSyntax(def));
@@ -147,23 +192,26 @@ public class SwarmDeploymentConfig extends DeploymentConfig {
             throw new InvalidFormatException(Messages.SwarmDeploymentConfig_portRangesDontMatchInLength(def));
         }
 
-        final ArrayList<ServicePort> servicePorts = new ArrayList<ServicePort>();
-        for (int p = ext; p <= extEnd; p++) {
-            servicePorts.add(new ServicePort(p, inter + p - ext, protocol));
+        if (extEnd < ext) {
+            throw new InvalidFormatException(Messages.SwarmDeploymentConfig_invalidPortSyntax(def));
         }
 
-        return servicePorts;
+        // The labels of a single port apply to that port only, wherever it is in the range
+        return new ServicePortRange(ext, extEnd, inter, protocol, LoadBalancerSettings.fromLabels(labels, null),
+                LoadBalancerSettings.fromPortLabels(labels, ext, extEnd));
     }
 
     /**
      * Parse ports in long syntax.
      *
-     * @param node Node of port definition
+     * @param node   Node of port definition
+     * @param labels Labels of the service
      * @return List of ServicePort
      * @throws InvalidFormatException
      * @see <a href="https://docs.docker.com/compose/compose-file/#ports">Docker Compose - Ports</a>
      */
-    private List<ServicePort> parsePortLongSyntax(Map node) throws InvalidFormatException {
+    private List<ServicePort> parsePortLongSyntax(Map node, Map<String, String> labels)
+            throws InvalidFormatException {
         final Object targetNode = node.get("target");
         if (targetNode == null || !(targetNode instanceof Integer)) {
             throw new InvalidFormatException(Messages.SwarmDeploymentConfig_noTargetPort());
@@ -183,6 +231,8 @@ public class SwarmDeploymentConfig extends DeploymentConfig {
             }
         }
 
-        return Arrays.asList(new ServicePort((Integer) publishedNode, (Integer) targetNode, protocol));
+        final int published = (Integer) publishedNode;
+        return Arrays.asList(new ServicePort(published, (Integer) targetNode, protocol,
+                LoadBalancerSettings.fromLabels(labels, published)));
     }
 }
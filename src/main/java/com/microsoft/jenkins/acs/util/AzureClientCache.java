@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.acs.util;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.microsoft.azure.management.Azure;
+import com.microsoft.jenkins.acs.Messages;
+import com.microsoft.jenkins.azurecommons.core.credentials.TokenCredentialData;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded cache of the authenticated {@link Azure} clients in the current JVM.
+ * <p>
+ * Each {@link Azure} client owns its own OkHttp stack and acquires the AAD token lazily on the first request, so
+ * building one for every command or form request is expensive. The clients are keyed by the credential ID, the
+ * Azure environment, a fingerprint of the credential data and the {@link AzureTransportSettings}, so that an updated
+ * credential (e.g., a rotated secret) never reuses a client built from the stale data.
+ * <p>
+ * The cache is static, so each agent JVM keeps its own copy. The remoting callables that receive the
+ * {@link TokenCredentialData} from the controller thus reuse the client, together with the access token it holds,
+ * across the builds running on the same agent. The entries live for at most {@value #TIME_TO_LIVE_MINUTES} minutes
+ * since they were first built, including the background refreshes, to bound the lifetime of the credential data
+ * shipped to the agents.
+ * <p>
+ * The AAD access tokens are acquired lazily by the SDK on the first request and are valid for about an hour. To keep
+ * the token acquisition off the build's critical path, the {@link AzureTokenRefresher} periodically replaces the
+ * clients whose token is about to expire with freshly built and warmed up ones, as long as they are still in use.
+ */
+public final class AzureClientCache {
+    private static final Logger LOGGER = Logger.getLogger(AzureClientCache.class.getName());
+
+    private static final int MAX_CLIENTS = 32;
+    private static final long EXPIRE_AFTER_ACCESS_MINUTES = 30;
+    private static final long TIME_TO_LIVE_MINUTES = 240;
+
+    /**
+     * The age after which the client will be rebuilt in the background, before the AAD token (valid for 60 minutes
+     * by default) it holds expires.
+     */
+    private static final long REFRESH_AFTER_MINUTES = 45;
+
+    private static volatile Ticker ticker = Ticker.systemTicker();
+
+    private static final Ticker CACHE_TICKER = new Ticker() {
+        @Override
+        public long read() {
+            return ticker.read();
+        }
+    };
+
+    private static final Cache<Key, CachedClient> CLIENTS = CacheBuilder.newBuilder()
+            .ticker(CACHE_TICKER)
+            .maximumSize(MAX_CLIENTS)
+            .expireAfterAccess(EXPIRE_AFTER_ACCESS_MINUTES, TimeUnit.MINUTES)
+            .expireAfterWrite(TIME_TO_LIVE_MINUTES, TimeUnit.MINUTES)
+            .recordStats()
+            .build();
+
+    /**
+     * Get the cached client for the given credential, or build one with the given builder if absent.
+     *
+     * @param credentialId the ID of the Azure credential, may be {@code null} if unknown
+     * @param token        the token data resolved from the credential
+     * @param transport    the HTTP transport settings the client is built with
+     * @param builder      builds a new client on cache miss
+     * @return the cached or newly built client
+     */
+    public static Azure get(
+            String credentialId,
+            TokenCredentialData token,
+            AzureTransportSettings transport,
+            final Callable<Azure> builder) {
+        Key key = new Key(credentialId, token.getAzureEnvironmentName(), fingerprint(token), transport);
+        CachedClient cached = load(key, builder);
+        if (cached.isExpired(ticker.read())) {
+            // The background refresh rewrites the entry, which restarts the expiry of the cache, so the time to live
+            // is also checked against the time the entry was first built
+            CLIENTS.asMap().remove(key, cached);
+            cached = load(key, builder);
+        }
+        AzureTokenRefresher.ensureStarted();
+        return cached.touch();
+    }
+
+    private static CachedClient load(Key key, final Callable<Azure> builder) {
+        try {
+            return CLIENTS.get(key, new Callable<CachedClient>() {
+                @Override
+                public CachedClient call() throws Exception {
+                    return new CachedClient(builder.call(), builder, ticker.read());
+                }
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Same as {@link #get(String, TokenCredentialData, AzureTransportSettings, Callable)}, and print whether the
+     * lookup hit the cache along with the overall hit / miss counters of the current JVM to the given logger.
+     *
+     * @param credentialId the ID of the Azure credential, may be {@code null} if unknown
+     * @param token        the token data resolved from the credential
+     * @param transport    the HTTP transport settings the client is built with
+     * @param builder      builds a new client on cache miss
+     * @param logger       the build log
+     * @return the cached or newly built client
+     */
+    public static Azure get(
+            String credentialId,
+            TokenCredentialData token,
+            AzureTransportSettings transport,
+            final Callable<Azure> builder,
+            PrintStream logger) {
+        final AtomicBoolean built = new AtomicBoolean();
+        Azure client = get(credentialId, token, transport, new Callable<Azure>() {
+            @Override
+            public Azure call() throws Exception {
+                built.set(true);
+                return builder.call();
+            }
+        });
+        CacheStats stats = CLIENTS.stats();
+        if (built.get()) {
+            logger.println(Messages.AzureClientCache_miss(stats.hitCount(), stats.missCount(), CLIENTS.size()));
+        } else {
+            logger.println(Messages.AzureClientCache_hit(stats.hitCount(), stats.missCount(), CLIENTS.size()));
+        }
+        return client;
+    }
+
+    public static void invalidateAll() {
+        CLIENTS.invalidateAll();
+    }
+
+    /**
+     * Rebuild the clients that are still in use but whose access token is about to expire. The new client is warmed
+     * up with a cheap ARM request, which acquires the token, before it replaces the old one in the cache. Failures
+     * are left to the builds, which will rebuild the client on demand after the old one expires. The entries that
+     * reached the time to live are dropped rather than rebuilt, so the credential data is loaded again.
+     */
+    static void refreshExpiring() {
+        final long now = ticker.read();
+        for (Map.Entry<Key, CachedClient> entry : CLIENTS.asMap().entrySet()) {
+            CachedClient cached = entry.getValue();
+            if (cached.isExpired(now)) {
+                CLIENTS.asMap().remove(entry.getKey(), cached);
+                continue;
+            }
+            if (now - cached.builtAt < TimeUnit.MINUTES.toNanos(REFRESH_AFTER_MINUTES)
+                    || now - cached.lastUsed > TimeUnit.MINUTES.toNanos(EXPIRE_AFTER_ACCESS_MINUTES)) {
+                continue;
+            }
+            try {
+                Azure client = cached.builder.call();
+                client.getCurrentSubscription();
+                CachedClient refreshed = new CachedClient(client, cached.builder, cached.createdAt);
+                refreshed.lastUsed = cached.lastUsed;
+                CLIENTS.asMap().replace(entry.getKey(), cached, refreshed);
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Failed to refresh the Azure client in the background", e);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    static void setTicker(Ticker value) {
+        ticker = value;
+    }
+
+    /**
+     * Calculate the fingerprint of the token data, which covers all the fields that may affect the client built.
+     *
+     * @param token the token data
+     * @return hex encoded SHA-256 digest of the serialized token data
+     */
+    public static String fingerprint(TokenCredentialData token) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(token);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return DigestUtils.sha256Hex(bytes.toByteArray());
+    }
+
+    private static final class CachedClient {
+        private final Azure client;
+        private final Callable<Azure> builder;
+        // the ticker time when the entry was first built, kept over the refreshes
+        private final long createdAt;
+        // the ticker time when this client was built
+        private final long builtAt = ticker.read();
+        private volatile long lastUsed = builtAt;
+
+        CachedClient(Azure client, Callable<Azure> builder, long createdAt) {
+            this.client = client;
+            this.builder = builder;
+            this.createdAt = createdAt;
+        }
+
+        boolean isExpired(long now) {
+            return now - createdAt >= TimeUnit.MINUTES.toNanos(TIME_TO_LIVE_MINUTES);
+        }
+
+        Azure touch() {
+            lastUsed = ticker.read();
+            return client;
+        }
+    }
+
+    private static final class Key {
+        private final String credentialId;
+        private final String environment;
+        private final String fingerprint;
+        private final AzureTransportSettings transport;
+
+        Key(String credentialId, String environment, String fingerprint, AzureTransportSettings transport) {
+            this.credentialId = StringUtils.defaultString(credentialId);
+            this.environment = StringUtils.defaultString(environment);
+            this.fingerprint = fingerprint;
+            this.transport = transport == null ? AzureTransportSettings.DEFAULT : transport;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return credentialId.equals(other.credentialId)
+                    && environment.equals(other.environment)
+                    && fingerprint.equals(other.fingerprint)
+                    && transport.equals(other.transport);
+        }
+
+        @Override
+        public int hashCode() {
+            return (credentialId + '|' + environment + '|' + fingerprint + '|' + transport).hashCode();
+        }
+    }
+
+    private AzureClientCache() {
+        // hide constructor
+    }
+}
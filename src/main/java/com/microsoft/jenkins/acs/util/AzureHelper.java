@@ -14,6 +14,9 @@ import com.microsoft.jenkins.azurecommons.core.AzureClientFactory;
 import com.microsoft.jenkins.azurecommons.core.credentials.TokenCredentialData;
 import hudson.model.Item;
 
+import java.io.PrintStream;
+import java.util.concurrent.Callable;
+
 /**
  * Helper methods on the Azure related constructs.
  */
@@ -30,15 +33,65 @@ public final class AzureHelper {
 
     public static Azure buildClient(Item owner, String credentialId) {
         TokenCredentialData token = getToken(owner, credentialId);
-        return buildClient(token);
+        return buildClient(credentialId, token, AzureTransportSettings.current());
+    }
+
+    /**
+     * Get the {@link Azure} client for the given credential from the {@link AzureClientCache}, building it only if
+     * no client with the same credential data and transport settings is cached in the current JVM.
+     *
+     * @param credentialId the ID of the Azure credential which the token was resolved from
+     * @param token        the token data
+     * @param transport    the HTTP transport settings
+     * @return the shared client
+     */
+    public static Azure buildClient(
+            String credentialId,
+            final TokenCredentialData token,
+            final AzureTransportSettings transport) {
+        return AzureClientCache.get(credentialId, token, transport, new Callable<Azure>() {
+            @Override
+            public Azure call() {
+                return buildClient(token, transport);
+            }
+        });
+    }
+
+    /**
+     * Same as {@link #buildClient(String, TokenCredentialData, AzureTransportSettings)}, and report the client cache
+     * usage to the given logger. This is used in the remoting callables so that the cache efficiency on the agent is
+     * visible in the build log.
+     *
+     * @param credentialId the ID of the Azure credential which the token was resolved from
+     * @param token        the token data
+     * @param transport    the HTTP transport settings
+     * @param logger       the build log
+     * @return the shared client
+     */
+    public static Azure buildClient(
+            String credentialId,
+            final TokenCredentialData token,
+            final AzureTransportSettings transport,
+            PrintStream logger) {
+        return AzureClientCache.get(credentialId, token, transport, new Callable<Azure>() {
+            @Override
+            public Azure call() {
+                return buildClient(token, transport);
+            }
+        }, logger);
     }
 
     public static Azure buildClient(TokenCredentialData token) {
+        return buildClient(token, AzureTransportSettings.DEFAULT);
+    }
+
+    public static Azure buildClient(TokenCredentialData token, final AzureTransportSettings transport) {
         return AzureClientFactory.getClient(token, new AzureClientFactory.Configurer() {
             @Override
             public Azure.Configurable configure(Azure.Configurable configurable) {
-                return configurable
+                return transport.apply(configurable)
                         .withInterceptor(new AzureACSPlugin.AzureTelemetryInterceptor())
+                        .withInterceptor(new ConditionalUpdateInterceptor())
                         .withUserAgent(AzureClientFactory.getUserAgent(Constants.PLUGIN_NAME,
                                 AzureHelper.class.getPackage().getImplementationVersion()));
             }
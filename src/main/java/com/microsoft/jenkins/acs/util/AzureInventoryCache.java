@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.acs.util;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.microsoft.azure.management.Azure;
+import com.microsoft.azure.management.containerservice.ContainerService;
+import com.microsoft.azure.management.containerservice.KubernetesCluster;
+import com.microsoft.azure.management.resources.ResourceGroup;
+import com.microsoft.jenkins.azurecommons.core.credentials.TokenCredentialData;
+import org.apache.commons.lang.StringUtils;
+import rx.Observable;
+import rx.functions.Func1;
+import rx.functions.Func2;
+import rx.schedulers.Schedulers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Controller side cache of the resource groups and container services visible to the Azure credentials, which backs
+ * the dropdowns on the job configuration page.
+ * <p>
+ * Listing the resources pages through the ARM APIs, which takes seconds in large subscriptions. The entries are
+ * served from the cache once loaded and reloaded in the background after {@value #REFRESH_AFTER_MINUTES} minutes, so
+ * that the fill requests get the previous listing while the new one is fetched. If the background reload fails, the
+ * previous listing is kept until the next attempt.
+ */
+public final class AzureInventoryCache {
+    private static final int MAX_ENTRIES = 256;
+    private static final long REFRESH_AFTER_MINUTES = 2;
+    private static final long EXPIRE_AFTER_ACCESS_MINUTES = 60;
+    private static final int RELOAD_THREADS = 2;
+
+    private static final ExecutorService RELOAD_EXECUTOR = Executors.newFixedThreadPool(RELOAD_THREADS,
+            new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("azure-acs-inventory-%d")
+                    .build());
+
+    private static final Lister AZURE_LISTER = new Lister() {
+        @Override
+        public List<String> list(String credentialId, TokenCredentialData token, String resourceGroupName) {
+            Azure azureClient = AzureHelper.buildClient(credentialId, token, AzureTransportSettings.current());
+            if (resourceGroupName == null) {
+                return listResourceGroups(azureClient);
+            }
+            return listContainerServices(azureClient, resourceGroupName);
+        }
+    };
+
+    private static volatile Lister lister = AZURE_LISTER;
+
+    private static volatile Ticker ticker = Ticker.systemTicker();
+
+    private static final Ticker CACHE_TICKER = new Ticker() {
+        @Override
+        public long read() {
+            return ticker.read();
+        }
+    };
+
+    private static final LoadingCache<Key, List<String>> INVENTORY = CacheBuilder.newBuilder()
+            .ticker(CACHE_TICKER)
+            .maximumSize(MAX_ENTRIES)
+            .refreshAfterWrite(REFRESH_AFTER_MINUTES, TimeUnit.MINUTES)
+            .expireAfterAccess(EXPIRE_AFTER_ACCESS_MINUTES, TimeUnit.MINUTES)
+            .build(CacheLoader.asyncReloading(new CacheLoader<Key, List<String>>() {
+                @Override
+                public List<String> load(Key key) throws Exception {
+                    return lister.list(key.credentialId, key.token, key.resourceGroupName);
+                }
+            }, RELOAD_EXECUTOR));
+
+    /**
+     * Get the names of the resource groups in the subscription of the credential.
+     *
+     * @param credentialId the ID of the Azure credential
+     * @param token        the token data resolved from the credential
+     * @return the resource group names
+     */
+    public static List<String> getResourceGroups(String credentialId, TokenCredentialData token) {
+        return get(new Key(credentialId, token, null));
+    }
+
+    /**
+     * Get the supported container services in the given resource group, in the form of
+     * {@code <name> | <orchestrator type>}.
+     *
+     * @param credentialId      the ID of the Azure credential
+     * @param token             the token data resolved from the credential
+     * @param resourceGroupName the resource group name
+     * @return the container service entries
+     */
+    public static List<String> getContainerServices(
+            String credentialId, TokenCredentialData token, String resourceGroupName) {
+        return get(new Key(credentialId, token, resourceGroupName));
+    }
+
+    public static void invalidateAll() {
+        INVENTORY.invalidateAll();
+    }
+
+    /**
+     * Replace the listing of the Azure resources and the time source, or restore the defaults if {@code null}.
+     */
+    @VisibleForTesting
+    static void setLister(Lister value, Ticker source) {
+        lister = value == null ? AZURE_LISTER : value;
+        ticker = source == null ? Ticker.systemTicker() : source;
+        invalidateAll();
+    }
+
+    private static List<String> get(Key key) {
+        try {
+            return INVENTORY.get(key);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static List<String> listResourceGroups(Azure azureClient) {
+        List<String> names = new ArrayList<>();
+        for (ResourceGroup resourceGroup : azureClient.resourceGroups().list()) {
+            names.add(resourceGroup.name());
+        }
+        return Collections.unmodifiableList(names);
+    }
+
+    /**
+     * List the ACS and AKS clusters in the resource group concurrently. AKS clusters are listed with the typed managed
+     * clusters API, which is filtered by the server, rather than scanning all the generic resources in the group.
+     */
+    private static List<String> listContainerServices(Azure azureClient, String resourceGroupName) {
+        Observable<List<String>> acs = azureClient.containerServices()
+                .listByResourceGroupAsync(resourceGroupName)
+                .filter(new Func1<ContainerService, Boolean>() {
+                    @Override
+                    public Boolean call(ContainerService containerService) {
+                        return Constants.SUPPORTED_ORCHESTRATOR.contains(containerService.orchestratorType());
+                    }
+                })
+                .map(new Func1<ContainerService, String>() {
+                    @Override
+                    public String call(ContainerService containerService) {
+                        return String.format("%s | %s", containerService.name(), containerService.orchestratorType());
+                    }
+                })
+                .toList()
+                .subscribeOn(Schedulers.io());
+
+        Observable<List<String>> aks = azureClient.kubernetesClusters()
+                .listByResourceGroupAsync(resourceGroupName)
+                .map(new Func1<KubernetesCluster, String>() {
+                    @Override
+                    public String call(KubernetesCluster cluster) {
+                        return String.format("%s | %s", cluster.name(), Constants.AKS);
+                    }
+                })
+                .toList()
+                .subscribeOn(Schedulers.io());
+
+        return Observable.zip(acs, aks, new Func2<List<String>, List<String>, List<String>>() {
+            @Override
+            public List<String> call(List<String> acsValues, List<String> aksValues) {
+                List<String> values = new ArrayList<>(acsValues.size() + aksValues.size());
+                values.addAll(acsValues);
+                values.addAll(aksValues);
+                return Collections.unmodifiableList(values);
+            }
+        }).toBlocking().single();
+    }
+
+    /**
+     * Lists the names of the resource groups, or the container services in the resource group if given.
+     */
+    @VisibleForTesting
+    interface Lister {
+        List<String> list(String credentialId, TokenCredentialData token, String resourceGroupName) throws Exception;
+    }
+
+    private static final class Key {
+        private final String credentialId;
+        private final String fingerprint;
+        private final String resourceGroupName;
+        // Used to reload the entry only, the fingerprint identifies it
+        private final TokenCredentialData token;
+
+        Key(String credentialId, TokenCredentialData token, String resourceGroupName) {
+            this.credentialId = StringUtils.defaultString(credentialId);
+            this.fingerprint = AzureClientCache.fingerprint(token);
+            this.resourceGroupName = resourceGroupName;
+            this.token = token;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return credentialId.equals(other.credentialId)
+                    && fingerprint.equals(other.fingerprint)
+                    && StringUtils.equalsIgnoreCase(resourceGroupName, other.resourceGroupName);
+        }
+
+        @Override
+        public int hashCode() {
+            return (credentialId + '|' + fingerprint + '|'
+                    + StringUtils.lowerCase(resourceGroupName)).hashCode();
+        }
+    }
+
+    private AzureInventoryCache() {
+        // hide constructor
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.acs.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background task that refreshes the access tokens held by the {@link AzureClientCache} before they expire.
+ * <p>
+ * The task is started on the first cache access in the JVM, which may be either the controller or an agent, so it
+ * runs on its own daemon thread rather than relying on the Jenkins timer.
+ */
+final class AzureTokenRefresher {
+    private static final long CHECK_INTERVAL_MINUTES = 5;
+
+    private static ScheduledExecutorService executor;
+
+    static synchronized void ensureStarted() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("azure-acs-token-refresher-%d")
+                .build());
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                AzureClientCache.refreshExpiring();
+            }
+        }, CHECK_INTERVAL_MINUTES, CHECK_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    private AzureTokenRefresher() {
+        // hide constructor
+    }
+}
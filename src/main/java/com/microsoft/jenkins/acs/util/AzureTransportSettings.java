@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.acs.util;
+
+import com.microsoft.azure.management.Azure;
+import com.microsoft.jenkins.acs.AzureACSGlobalConfiguration;
+import jenkins.model.GlobalConfiguration;
+import jenkins.model.Jenkins;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP transport settings applied to the {@link Azure} clients built by the plugin.
+ * <p>
+ * The settings are configured on the controller and shipped to the agents along with the token data, so that the
+ * clients built in the remoting callables behave the same as the ones on the controller. A value of {@code 0} leaves
+ * the SDK default in place.
+ */
+public final class AzureTransportSettings implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final AzureTransportSettings DEFAULT = new AzureTransportSettings(0, 0, 0);
+
+    private final int connectTimeoutSeconds;
+    private final int readTimeoutSeconds;
+    private final int maxIdleConnections;
+
+    public AzureTransportSettings(int connectTimeoutSeconds, int readTimeoutSeconds, int maxIdleConnections) {
+        this.connectTimeoutSeconds = Math.max(0, connectTimeoutSeconds);
+        this.readTimeoutSeconds = Math.max(0, readTimeoutSeconds);
+        this.maxIdleConnections = Math.max(0, maxIdleConnections);
+    }
+
+    /**
+     * Get the settings from the global configuration. This should only be called on the controller.
+     *
+     * @return the configured settings, or {@link #DEFAULT} if Jenkins is not available
+     */
+    public static AzureTransportSettings current() {
+        if (Jenkins.getInstanceOrNull() == null) {
+            return DEFAULT;
+        }
+        AzureACSGlobalConfiguration configuration =
+                GlobalConfiguration.all().get(AzureACSGlobalConfiguration.class);
+        if (configuration == null) {
+            return DEFAULT;
+        }
+        return configuration.getTransportSettings();
+    }
+
+    public Azure.Configurable apply(Azure.Configurable configurable) {
+        Azure.Configurable result = configurable;
+        if (connectTimeoutSeconds > 0) {
+            result = result.withConnectionTimeout(connectTimeoutSeconds, TimeUnit.SECONDS);
+        }
+        if (readTimeoutSeconds > 0) {
+            result = result.withReadTimeout(readTimeoutSeconds, TimeUnit.SECONDS);
+        }
+        if (maxIdleConnections > 0) {
+            result = result.withMaxIdleConnections(maxIdleConnections);
+        }
+        return result;
+    }
+
+    public int getConnectTimeoutSeconds() {
+        return connectTimeoutSeconds;
+    }
+
+    public int getReadTimeoutSeconds() {
+        return readTimeoutSeconds;
+    }
+
+    public int getMaxIdleConnections() {
+        return maxIdleConnections;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof AzureTransportSettings)) {
+            return false;
+        }
+        AzureTransportSettings other = (AzureTransportSettings) obj;
+        return connectTimeoutSeconds == other.connectTimeoutSeconds
+                && readTimeoutSeconds == other.readTimeoutSeconds
+                && maxIdleConnections == other.maxIdleConnections;
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("connect=%ds,read=%ds,maxIdle=%d",
+                connectTimeoutSeconds, readTimeoutSeconds, maxIdleConnections);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.acs.util;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.microsoft.azure.management.resources.fluentcore.model.Appliable;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Adds {@code If-Match} to the PUT requests of the resources being updated through
+ * {@link #applyIfMatch(String, String, Appliable)}, so that ARM rejects the update with 412 Precondition Failed if the
+ * resource has been modified since it was read, rather than silently overwriting the changes made in between, e.g.,
+ * by another Jenkins controller.
+ * <p>
+ * The fluent updates do not take request headers, so the expected ETags are registered here by resource ID for the
+ * duration of the update, and picked up by the interceptor installed on the clients built by {@link AzureHelper}.
+ */
+public final class ConditionalUpdateInterceptor implements Interceptor {
+    private static final ConcurrentMap<String, String> EXPECTED_ETAGS = new ConcurrentHashMap<>();
+
+    /**
+     * Apply the update, on the condition that the resource still has the given ETag.
+     *
+     * @param resourceId the ID of the resource, as read before the update
+     * @param etag       the ETag of the resource, as read before the update, or {@code null} to apply unconditionally
+     * @param update     the update of the resource
+     * @param <T>        the type of the resource
+     * @return the resource as updated
+     */
+    public static <T> T applyIfMatch(String resourceId, String etag, Appliable<T> update) {
+        if (StringUtils.isEmpty(resourceId) || StringUtils.isEmpty(etag)) {
+            return update.apply();
+        }
+        final String key = key(resourceId);
+        EXPECTED_ETAGS.put(key, etag);
+        try {
+            return update.apply();
+        } finally {
+            EXPECTED_ETAGS.remove(key, etag);
+        }
+    }
+
+    @VisibleForTesting
+    static String expectedEtag(Request request) {
+        if (!"PUT".equals(request.method())) {
+            return null;
+        }
+        return EXPECTED_ETAGS.get(key(request.url().encodedPath()));
+    }
+
+    private static String key(String resourceId) {
+        // Azure resource IDs are case insensitive
+        return StringUtils.removeEnd(resourceId, "/").toLowerCase(Locale.ENGLISH);
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        final Request request = chain.request();
+        final String etag = expectedEtag(request);
+        if (etag == null) {
+            return chain.proceed(request);
+        }
+        return chain.proceed(request.newBuilder().header("If-Match", etag).build());
+    }
+}
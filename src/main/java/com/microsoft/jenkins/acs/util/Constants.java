@@ -35,6 +35,10 @@ public final class Constants {
      * Increment step for the priority of the network security rule.
      */
     public static final int PRIORITY_STEP = 10;
+    /**
+     * Highest priority for the network security rule.
+     */
+    public static final int HIGHEST_PRIORITY = 100;
     /**
      * Lowest priority for the network security rule (value range: [100, 4096]). Smaller number got higher priority.
      */
@@ -75,6 +79,21 @@ public final class Constants {
 
     public static final String MARATHON_DOCKER_CFG_ARCHIVE_URI = "MARATHON_DOCKER_CFG_ARCHIVE_URI";
 
+    /**
+     * Prefix of the build environment variables that record the seconds each Marathon app or group took to roll out.
+     */
+    public static final String MARATHON_ROLLOUT_SECONDS_PREFIX = "MARATHON_ROLLOUT_SECONDS_";
+
+    /**
+     * Delete the Marathon app and create it again.
+     */
+    public static final String MARATHON_UPDATE_RECREATE = "Recreate";
+
+    /**
+     * Update the Marathon app in place, which is rolled out following its {@code upgradeStrategy}.
+     */
+    public static final String MARATHON_UPDATE_ROLLING = "Rolling";
+
     public static final Protocol UDP = Protocol.fromString("Udp");
 
     public static final Set<ContainerServiceOrchestratorTypes> SUPPORTED_ORCHESTRATOR =
@@ -92,8 +111,6 @@ public final class Constants {
     )));
 
     public static final String AKS = "AKS";
-    public static final String AKS_PROVIDER = "Microsoft.ContainerService";
-    public static final String AKS_RESOURCE_TYPE = "managedClusters";
 
     public static final int DEFAULT_SSH_PORT = 22;
     public static final int DCOS_SSH_PORT = 2200;
@@ -117,6 +134,9 @@ public final class Constants {
     public static final String AI_MESSAGE = "ErrorMessage";
     public static final String AI_FQDN = "FQDN";
     public static final String AI_RESOURCE_NAME = "ResourceName";
+    public static final String AI_ROLLED_OUT = "RolledOut";
+    public static final String AI_APP_ID = "AppId";
+    public static final String AI_DURATION_SECONDS = "DurationSeconds";
 
     public static int sshPort(ContainerServiceOrchestratorTypes type) {
         if (DCOS.equals(type)) {
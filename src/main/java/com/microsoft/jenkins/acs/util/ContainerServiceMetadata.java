@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.acs.util;
+
+import java.io.Serializable;
+
+/**
+ * The container service properties the deployment depends on, as recorded by {@link ContainerServiceMetadataCache}.
+ */
+public class ContainerServiceMetadata implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private String orchestratorType;
+    private String masterFqdn;
+    private String adminUsername;
+    private long fetchedAt;
+    private String securityGroupId;
+    private String loadBalancerId;
+    private String securityGroupEtag;
+    private String loadBalancerEtag;
+    private String appliedPortsDigest;
+    private long recordedAt;
+
+    public ContainerServiceMetadata() {
+    }
+
+    public ContainerServiceMetadata(ContainerServiceMetadata other) {
+        this.orchestratorType = other.orchestratorType;
+        this.masterFqdn = other.masterFqdn;
+        this.adminUsername = other.adminUsername;
+        this.fetchedAt = other.fetchedAt;
+        this.securityGroupId = other.securityGroupId;
+        this.loadBalancerId = other.loadBalancerId;
+        this.securityGroupEtag = other.securityGroupEtag;
+        this.loadBalancerEtag = other.loadBalancerEtag;
+        this.appliedPortsDigest = other.appliedPortsDigest;
+        this.recordedAt = other.recordedAt;
+    }
+
+    public String getOrchestratorType() {
+        return orchestratorType;
+    }
+
+    public void setOrchestratorType(String orchestratorType) {
+        this.orchestratorType = orchestratorType;
+    }
+
+    public String getMasterFqdn() {
+        return masterFqdn;
+    }
+
+    public void setMasterFqdn(String masterFqdn) {
+        this.masterFqdn = masterFqdn;
+    }
+
+    public String getAdminUsername() {
+        return adminUsername;
+    }
+
+    public void setAdminUsername(String adminUsername) {
+        this.adminUsername = adminUsername;
+    }
+
+    /**
+     * @return the time in milliseconds when the properties were read from Azure
+     */
+    public long getFetchedAt() {
+        return fetchedAt;
+    }
+
+    public void setFetchedAt(long fetchedAt) {
+        this.fetchedAt = fetchedAt;
+    }
+
+    /**
+     * @return the resource ID of the security group of the public agents, as resolved by the last deployment
+     */
+    public String getSecurityGroupId() {
+        return securityGroupId;
+    }
+
+    public void setSecurityGroupId(String securityGroupId) {
+        this.securityGroupId = securityGroupId;
+    }
+
+    /**
+     * @return the resource ID of the load balancer of the agents, as resolved by the last deployment
+     */
+    public String getLoadBalancerId() {
+        return loadBalancerId;
+    }
+
+    public void setLoadBalancerId(String loadBalancerId) {
+        this.loadBalancerId = loadBalancerId;
+    }
+
+    public String getSecurityGroupEtag() {
+        return securityGroupEtag;
+    }
+
+    public void setSecurityGroupEtag(String securityGroupEtag) {
+        this.securityGroupEtag = securityGroupEtag;
+    }
+
+    public String getLoadBalancerEtag() {
+        return loadBalancerEtag;
+    }
+
+    public void setLoadBalancerEtag(String loadBalancerEtag) {
+        this.loadBalancerEtag = loadBalancerEtag;
+    }
+
+    /**
+     * @return digest of the service ports applied to the security group and the load balancer by the last deployment
+     */
+    public String getAppliedPortsDigest() {
+        return appliedPortsDigest;
+    }
+
+    public void setAppliedPortsDigest(String appliedPortsDigest) {
+        this.appliedPortsDigest = appliedPortsDigest;
+    }
+
+    /**
+     * @return the time in milliseconds when the entry was last recorded by {@link ContainerServiceMetadataCache}
+     */
+    public long getRecordedAt() {
+        return recordedAt;
+    }
+
+    public void setRecordedAt(long recordedAt) {
+        this.recordedAt = recordedAt;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.acs.util;
+
+import com.google.common.annotations.VisibleForTesting;
+import hudson.XmlFile;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controller side store of the {@link ContainerServiceMetadata}, keyed by subscription, resource group and container
+ * service name.
+ * <p>
+ * The master FQDN, orchestrator type and admin username of a container service rarely change, so there is no need
+ * to fetch the container service from Azure for every deployment. The entries are persisted in the Jenkins root
+ * directory so that they survive the controller restarts, and they are revalidated with Azure once they get older
+ * than the configured time to live.
+ * <p>
+ * The entries of the container services no longer deployed to are dropped once they have not been recorded for
+ * {@link #MAX_IDLE_DAYS} days, and the least recently recorded entries are dropped beyond {@link #MAX_ENTRIES}, so
+ * that the file does not grow with every container service ever deployed to.
+ */
+public final class ContainerServiceMetadataCache {
+    private static final Logger LOGGER = Logger.getLogger(ContainerServiceMetadataCache.class.getName());
+
+    static final int MAX_IDLE_DAYS = 30;
+    static final int MAX_ENTRIES = 500;
+
+    private static ContainerServiceMetadataCache instance;
+
+    private final transient XmlFile file;
+    private final Map<String, ContainerServiceMetadata> entries = new HashMap<>();
+
+    private ContainerServiceMetadataCache(XmlFile file) {
+        this.file = file;
+    }
+
+    public static synchronized ContainerServiceMetadataCache get() {
+        if (instance == null) {
+            File path = new File(Jenkins.getInstance().getRootDir(),
+                    ContainerServiceMetadataCache.class.getName() + ".xml");
+            instance = load(new XmlFile(Jenkins.XSTREAM2, path));
+        }
+        return instance;
+    }
+
+    @VisibleForTesting
+    static ContainerServiceMetadataCache load(XmlFile file) {
+        ContainerServiceMetadataCache cache = new ContainerServiceMetadataCache(file);
+        if (file.exists()) {
+            try {
+                file.unmarshal(cache);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load container service metadata from " + file, e);
+            }
+        }
+        final long now = System.currentTimeMillis();
+        for (ContainerServiceMetadata metadata : cache.entries.values()) {
+            if (metadata.getRecordedAt() == 0) {
+                // Recorded before the entries were timestamped
+                metadata.setRecordedAt(now);
+            }
+        }
+        // Saved with the next put
+        cache.prune(now);
+        return cache;
+    }
+
+    /**
+     * Get a copy of the recorded metadata if it is fresher than the given time to live.
+     *
+     * @param subscriptionId    the subscription ID
+     * @param resourceGroupName the resource group name
+     * @param name              the container service name
+     * @param ttlMinutes        time to live in minutes, non-positive value disables the cache
+     * @return copy of the recorded metadata, or {@code null} if absent or expired
+     */
+    public synchronized ContainerServiceMetadata lookup(
+            String subscriptionId, String resourceGroupName, String name, int ttlMinutes) {
+        if (ttlMinutes <= 0) {
+            return null;
+        }
+        ContainerServiceMetadata metadata = entries.get(key(subscriptionId, resourceGroupName, name));
+        if (metadata == null
+                || System.currentTimeMillis() - metadata.getFetchedAt() > TimeUnit.MINUTES.toMillis(ttlMinutes)) {
+            return null;
+        }
+        return new ContainerServiceMetadata(metadata);
+    }
+
+    /**
+     * Get a copy of the recorded metadata regardless of its age. Used for the properties that are verified by the
+     * consumer on use, such as the resource IDs of the agent network resources.
+     *
+     * @param subscriptionId    the subscription ID
+     * @param resourceGroupName the resource group name
+     * @param name              the container service name
+     * @return copy of the recorded metadata, or {@code null} if absent
+     */
+    public synchronized ContainerServiceMetadata peek(String subscriptionId, String resourceGroupName, String name) {
+        ContainerServiceMetadata metadata = entries.get(key(subscriptionId, resourceGroupName, name));
+        return metadata == null ? null : new ContainerServiceMetadata(metadata);
+    }
+
+    public void put(String subscriptionId, String resourceGroupName, String name, ContainerServiceMetadata metadata) {
+        put(subscriptionId, resourceGroupName, name, metadata, System.currentTimeMillis());
+    }
+
+    @VisibleForTesting
+    synchronized void put(
+            String subscriptionId,
+            String resourceGroupName,
+            String name,
+            ContainerServiceMetadata metadata,
+            long now) {
+        final ContainerServiceMetadata recorded = new ContainerServiceMetadata(metadata);
+        recorded.setRecordedAt(now);
+        entries.put(key(subscriptionId, resourceGroupName, name), recorded);
+        prune(now);
+        save();
+    }
+
+    /**
+     * Record the state of the agent network resources applied by a deployment, leaving the container service
+     * properties of the entry as they are now, as they may have been refreshed or invalidated by other builds while
+     * the network resources were updated.
+     *
+     * @param subscriptionId    the subscription ID
+     * @param resourceGroupName the resource group name
+     * @param name              the container service name
+     * @param networkState      the metadata to take the network resource IDs, ETags and applied ports digest from
+     */
+    public synchronized void updateNetworkState(
+            String subscriptionId, String resourceGroupName, String name, ContainerServiceMetadata networkState) {
+        final String key = key(subscriptionId, resourceGroupName, name);
+        ContainerServiceMetadata metadata = entries.get(key);
+        if (metadata == null) {
+            metadata = new ContainerServiceMetadata();
+            entries.put(key, metadata);
+        }
+        metadata.setSecurityGroupId(networkState.getSecurityGroupId());
+        metadata.setSecurityGroupEtag(networkState.getSecurityGroupEtag());
+        metadata.setLoadBalancerId(networkState.getLoadBalancerId());
+        metadata.setLoadBalancerEtag(networkState.getLoadBalancerEtag());
+        metadata.setAppliedPortsDigest(networkState.getAppliedPortsDigest());
+        final long now = System.currentTimeMillis();
+        metadata.setRecordedAt(now);
+        prune(now);
+        save();
+    }
+
+    /**
+     * Drop the container service properties read from Azure, so that the next {@link #lookup} misses and they are
+     * read again. The state of the agent network resources recorded along with them is kept, as it is verified on
+     * use.
+     *
+     * @param subscriptionId    the subscription ID
+     * @param resourceGroupName the resource group name
+     * @param name              the container service name
+     */
+    public synchronized void invalidate(String subscriptionId, String resourceGroupName, String name) {
+        final ContainerServiceMetadata metadata = entries.get(key(subscriptionId, resourceGroupName, name));
+        if (metadata != null && metadata.getFetchedAt() != 0) {
+            metadata.setMasterFqdn(null);
+            metadata.setFetchedAt(0);
+            save();
+        }
+    }
+
+    /**
+     * Drop the entries not recorded for {@link #MAX_IDLE_DAYS} days, and the least recently recorded ones beyond
+     * {@link #MAX_ENTRIES}.
+     */
+    private void prune(long now) {
+        final long idleBefore = now - TimeUnit.DAYS.toMillis(MAX_IDLE_DAYS);
+        final Iterator<ContainerServiceMetadata> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().getRecordedAt() < idleBefore) {
+                it.remove();
+            }
+        }
+        if (entries.size() <= MAX_ENTRIES) {
+            return;
+        }
+        final List<Map.Entry<String, ContainerServiceMetadata>> byAge = new ArrayList<>(entries.entrySet());
+        Collections.sort(byAge, new Comparator<Map.Entry<String, ContainerServiceMetadata>>() {
+            @Override
+            public int compare(Map.Entry<String, ContainerServiceMetadata> a,
+                               Map.Entry<String, ContainerServiceMetadata> b) {
+                return Long.compare(a.getValue().getRecordedAt(), b.getValue().getRecordedAt());
+            }
+        });
+        for (Map.Entry<String, ContainerServiceMetadata> entry : byAge.subList(0, byAge.size() - MAX_ENTRIES)) {
+            entries.remove(entry.getKey());
+        }
+    }
+
+    private void save() {
+        try {
+            file.write(this);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save container service metadata to " + file, e);
+        }
+    }
+
+    private static String key(String subscriptionId, String resourceGroupName, String name) {
+        // Azure resource group and resource names are case insensitive
+        return String.format("/subscriptions/%s/resourceGroups/%s/%s",
+                subscriptionId, resourceGroupName, name).toLowerCase(Locale.ENGLISH);
+    }
+}
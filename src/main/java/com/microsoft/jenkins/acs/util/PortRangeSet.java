@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.acs.util;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable set of TCP / UDP ports, stored as sorted, non-overlapping and non-adjacent closed intervals.
+ * <p>
+ * The set operations walk the intervals of both operands in one pass, so checking thousands of ports against
+ * hundreds of rule ranges costs time proportional to the number of intervals rather than the number of ports.
+ */
+public final class PortRangeSet implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final int MIN_PORT = 0;
+    public static final int MAX_PORT = 65535;
+
+    public static final PortRangeSet EMPTY = new PortRangeSet(new int[0], new int[0]);
+    public static final PortRangeSet ALL = new PortRangeSet(new int[]{MIN_PORT}, new int[]{MAX_PORT});
+
+    private static final String ANY = "*";
+
+    private final int[] starts;
+    private final int[] ends;
+
+    private PortRangeSet(int[] starts, int[] ends) {
+        this.starts = starts;
+        this.ends = ends;
+    }
+
+    public static PortRangeSet of(Collection<Integer> ports) {
+        Builder builder = new Builder();
+        for (int port : ports) {
+            builder.add(port, port);
+        }
+        return builder.build();
+    }
+
+    public static PortRangeSet range(int start, int end) {
+        return new Builder().add(start, end).build();
+    }
+
+    /**
+     * Parse the port specifications in the format used by the security rules, i.e., {@code *}, a single port
+     * {@code 80} or a range {@code 8000-9000}. Each specification may also be a comma separated list of the above.
+     *
+     * @param specs the port specifications, blank ones are ignored
+     * @return the ports covered by any of the specifications
+     * @throws IllegalArgumentException if any specification is malformed
+     */
+    public static PortRangeSet parse(Collection<String> specs) {
+        Builder builder = new Builder();
+        for (String spec : specs) {
+            if (StringUtils.isBlank(spec)) {
+                continue;
+            }
+            for (String part : spec.split(",")) {
+                builder.add(part.trim());
+            }
+        }
+        return builder.build();
+    }
+
+    public static PortRangeSet parse(String spec) {
+        return parse(Arrays.asList(spec));
+    }
+
+    public boolean isEmpty() {
+        return starts.length == 0;
+    }
+
+    public boolean isAll() {
+        return starts.length == 1 && starts[0] == MIN_PORT && ends[0] == MAX_PORT;
+    }
+
+    /**
+     * @return the number of intervals in the set
+     */
+    public int rangeCount() {
+        return starts.length;
+    }
+
+    public int rangeStart(int index) {
+        return starts[index];
+    }
+
+    public int rangeEnd(int index) {
+        return ends[index];
+    }
+
+    /**
+     * @return the number of ports in the set
+     */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < starts.length; ++i) {
+            size += ends[i] - starts[i] + 1;
+        }
+        return size;
+    }
+
+    public boolean contains(int port) {
+        int index = Arrays.binarySearch(starts, port);
+        if (index >= 0) {
+            return true;
+        }
+        // the interval starting right before the port
+        index = -index - 2;
+        return index >= 0 && port <= ends[index];
+    }
+
+    public PortRangeSet intersect(PortRangeSet other) {
+        Builder builder = new Builder();
+        int i = 0;
+        int j = 0;
+        while (i < starts.length && j < other.starts.length) {
+            int start = Math.max(starts[i], other.starts[j]);
+            int end = Math.min(ends[i], other.ends[j]);
+            if (start <= end) {
+                builder.add(start, end);
+            }
+            if (ends[i] < other.ends[j]) {
+                ++i;
+            } else {
+                ++j;
+            }
+        }
+        return builder.build();
+    }
+
+    public PortRangeSet minus(PortRangeSet other) {
+        Builder builder = new Builder();
+        int j = 0;
+        for (int i = 0; i < starts.length; ++i) {
+            int start = starts[i];
+            final int end = ends[i];
+            while (j < other.starts.length && other.ends[j] < start) {
+                ++j;
+            }
+            int k = j;
+            while (k < other.starts.length && other.starts[k] <= end && start <= end) {
+                if (other.starts[k] > start) {
+                    builder.add(start, other.starts[k] - 1);
+                }
+                start = other.ends[k] + 1;
+                ++k;
+            }
+            if (start <= end) {
+                builder.add(start, end);
+            }
+        }
+        return builder.build();
+    }
+
+    public PortRangeSet union(PortRangeSet other) {
+        Builder builder = new Builder();
+        builder.addAll(this);
+        builder.addAll(other);
+        return builder.build();
+    }
+
+    /**
+     * @return the intervals in the format used by the security rules, e.g., {@code [80, 8000-9000]}
+     */
+    public List<String> toRangeStrings() {
+        List<String> result = new ArrayList<>(starts.length);
+        for (int i = 0; i < starts.length; ++i) {
+            result.add(starts[i] == ends[i] ? String.valueOf(starts[i]) : starts[i] + "-" + ends[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof PortRangeSet)) {
+            return false;
+        }
+        PortRangeSet other = (PortRangeSet) obj;
+        return Arrays.equals(starts, other.starts) && Arrays.equals(ends, other.ends);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(starts) * 31 + Arrays.hashCode(ends);
+    }
+
+    @Override
+    public String toString() {
+        return isAll() ? ANY : StringUtils.join(toRangeStrings(), ",");
+    }
+
+    /**
+     * Collects the intervals in any order, and merges them on {@link #build()}.
+     */
+    public static final class Builder {
+        private final List<int[]> ranges = new ArrayList<>();
+
+        public Builder add(int start, int end) {
+            if (start < MIN_PORT || end > MAX_PORT || start > end) {
+                throw new IllegalArgumentException("Invalid port range: " + start + "-" + end);
+            }
+            ranges.add(new int[]{start, end});
+            return this;
+        }
+
+        public Builder addAll(PortRangeSet set) {
+            for (int i = 0; i < set.starts.length; ++i) {
+                ranges.add(new int[]{set.starts[i], set.ends[i]});
+            }
+            return this;
+        }
+
+        Builder add(String spec) {
+            if (ANY.equals(spec)) {
+                return add(MIN_PORT, MAX_PORT);
+            }
+            try {
+                int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    int port = Integer.parseInt(spec);
+                    return add(port, port);
+                }
+                return add(Integer.parseInt(spec.substring(0, dash).trim()),
+                        Integer.parseInt(spec.substring(dash + 1).trim()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid port range: " + spec, e);
+            }
+        }
+
+        public PortRangeSet build() {
+            if (ranges.isEmpty()) {
+                return EMPTY;
+            }
+            int[][] sorted = ranges.toArray(new int[ranges.size()][]);
+            Arrays.sort(sorted, new Comparator<int[]>() {
+                @Override
+                public int compare(int[] a, int[] b) {
+                    return Integer.compare(a[0], b[0]);
+                }
+            });
+            int[] starts = new int[sorted.length];
+            int[] ends = new int[sorted.length];
+            int count = 0;
+            for (int[] range : sorted) {
+                if (count > 0 && range[0] <= ends[count - 1] + 1) {
+                    ends[count - 1] = Math.max(ends[count - 1], range[1]);
+                } else {
+                    starts[count] = range[0];
+                    ends[count] = range[1];
+                    ++count;
+                }
+            }
+            return new PortRangeSet(Arrays.copyOf(starts, count), Arrays.copyOf(ends, count));
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.acs.util;
+
+import com.cloudbees.jenkins.plugins.sshcredentials.SSHUserPrivateKey;
+import com.cloudbees.jenkins.plugins.sshcredentials.impl.BasicSSHUserPrivateKey;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.domains.DomainRequirement;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Supplier;
+import com.google.common.base.Ticker;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Index of the system scoped SSH credentials by ID.
+ * <p>
+ * {@link CredentialsProvider#lookupCredentials} walks through all the credentials from all the providers, which is
+ * costly on a controller with lots of credentials. The result is indexed by the credentials ID and reused until the
+ * system credentials store is saved. As other providers may not notify the changes, the index is also rebuilt when
+ * it gets older than {@value #MAX_AGE_MINUTES} minutes, or on a miss if it is older than
+ * {@value #MIN_RELOAD_INTERVAL_SECONDS} seconds.
+ */
+public final class SshCredentialsIndex {
+    private static final long MAX_AGE_MINUTES = 5;
+    private static final long MIN_RELOAD_INTERVAL_SECONDS = 30;
+
+    private static final Supplier<List<? extends SSHUserPrivateKey>> LOOKUP =
+            new Supplier<List<? extends SSHUserPrivateKey>>() {
+                @Override
+                public List<? extends SSHUserPrivateKey> get() {
+                    return CredentialsProvider.lookupCredentials(
+                            BasicSSHUserPrivateKey.class,
+                            Jenkins.getInstance(),
+                            ACL.SYSTEM,
+                            Collections.<DomainRequirement>emptyList());
+                }
+            };
+
+    private static volatile Supplier<List<? extends SSHUserPrivateKey>> loader = LOOKUP;
+
+    private static volatile Ticker ticker = Ticker.systemTicker();
+
+    private static volatile Snapshot snapshot;
+
+    public static SSHUserPrivateKey get(String id) {
+        Snapshot current = snapshot;
+        if (current == null || current.olderThan(TimeUnit.MINUTES.toNanos(MAX_AGE_MINUTES))) {
+            current = reload();
+        }
+        SSHUserPrivateKey credentials = current.credentials.get(id);
+        if (credentials == null && current.olderThan(TimeUnit.SECONDS.toNanos(MIN_RELOAD_INTERVAL_SECONDS))) {
+            // the credentials may be added by a provider which doesn't notify us
+            credentials = reload().credentials.get(id);
+        }
+        return credentials;
+    }
+
+    public static void invalidate() {
+        snapshot = null;
+    }
+
+    private static Snapshot reload() {
+        Map<String, SSHUserPrivateKey> index = new HashMap<>();
+        for (SSHUserPrivateKey credentials : loader.get()) {
+            // keep the first match, which is consistent with CredentialsMatchers.firstOrNull
+            if (!index.containsKey(credentials.getId())) {
+                index.put(credentials.getId(), credentials);
+            }
+        }
+        Snapshot loaded = new Snapshot(index);
+        snapshot = loaded;
+        return loaded;
+    }
+
+    /**
+     * Replace the credentials lookup and the time source, or restore the defaults if {@code null}.
+     */
+    @VisibleForTesting
+    static void setLoader(Supplier<List<? extends SSHUserPrivateKey>> lookup, Ticker source) {
+        loader = lookup == null ? LOOKUP : lookup;
+        ticker = source == null ? Ticker.systemTicker() : source;
+        invalidate();
+    }
+
+    private static final class Snapshot {
+        private final Map<String, SSHUserPrivateKey> credentials;
+        private final long loadedAt = ticker.read();
+
+        Snapshot(Map<String, SSHUserPrivateKey> credentials) {
+            this.credentials = credentials;
+        }
+
+        boolean olderThan(long nanos) {
+            return ticker.read() - loadedAt > nanos;
+        }
+    }
+
+    /**
+     * Drops the index when the system credentials store is changed.
+     */
+    @Extension
+    public static final class CredentialsChangeListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof SystemCredentialsProvider) {
+                invalidate();
+            }
+        }
+    }
+
+    private SshCredentialsIndex() {
+        // hide constructor
+    }
+}
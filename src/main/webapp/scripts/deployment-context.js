@@ -16,7 +16,9 @@ Behaviour.specify("select[name$=containerService]", 'hide-optional-based-on-orch
 
         setElementVisibility(isKubernetes, 'secretName', 'secretNamespace');
         setElementVisibility(isSwarm, 'swarmRemoveContainersFirst');
-        setElementVisibility(isDCOS, 'dcosDockerCredentialsPath', 'dcosDockerCredenditalsPathShared');
+        setElementVisibility(isDCOS || isSwarm, 'compactSecurityRules');
+        setElementVisibility(isDCOS, 'dcosDockerCredentialsPath', 'dcosDockerCredenditalsPathShared',
+            'dcosMarathonGroupId', 'dcosUpdateStrategy', 'dcosDeploymentTimeoutMinutes');
         setElementVisibility(!isAKS, 'sshCredentialsId');
     }
 
@@ -5,6 +5,7 @@ import com.google.common.collect.ImmutableList;
 import com.microsoft.azure.util.AzureBaseCredentials;
 import com.microsoft.azure.util.AzureCredentials;
 import com.microsoft.jenkins.acs.util.Constants;
+import com.microsoft.jenkins.acs.util.ContainerServiceMetadataCache;
 import com.microsoft.jenkins.kubernetes.credentials.ResolvedDockerRegistryEndpoint;
 import hudson.model.Item;
 import hudson.util.FormValidation;
@@ -23,9 +24,12 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -95,6 +99,25 @@ public class ACSDeploymentContextTest {
                 ), context.getContainerRegistryCredentials());
     }
 
+    @Test
+    public void testDiscardCachedMetadata() {
+        ACSDeploymentContext context = new ACSDeploymentContext(
+                "azure-credentials", "resource-group", "test-container|DCOS", "ssh-credentials", "*.json");
+        ContainerServiceMetadataCache metadataCache = mock(ContainerServiceMetadataCache.class);
+
+        // The FQDN was read from Azure
+        context.discardCachedMetadata(metadataCache, System.out);
+        verify(metadataCache, never()).invalidate(anyString(), anyString(), anyString());
+
+        context.setCachedMetadataSubscriptionId("subscription");
+        context.discardCachedMetadata(metadataCache, System.out);
+        verify(metadataCache).invalidate("subscription", "resource-group", "test-container");
+
+        // Dropped once only
+        context.discardCachedMetadata(metadataCache, System.out);
+        verify(metadataCache).invalidate(anyString(), anyString(), anyString());
+    }
+
     private <T> void assertListEquals(List<? extends T> expected, List<? extends T> actual) {
         assertNotNull(actual);
         assertEquals(expected.toString(), actual.toString());
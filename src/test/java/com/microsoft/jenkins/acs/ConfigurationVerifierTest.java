@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.acs;
+
+import com.cloudbees.jenkins.plugins.sshcredentials.SSHUserPrivateKey;
+import com.jcraft.jsch.JSchException;
+import com.microsoft.jenkins.acs.util.AzureTransportSettings;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.microsoft.jenkins.acs.ACSTestHelper.expectException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link ConfigurationVerifier}.
+ */
+public class ConfigurationVerifierTest {
+    private ServerSocket server;
+
+    @Before
+    public void setup() throws IOException {
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void testProbeNonSshServer() throws Exception {
+        serve("HTTP/1.1 400 Bad Request\r\n\r\n");
+        expectException(JSchException.class, new ACSTestHelper.ExceptionRunnable() {
+            @Override
+            public void run() throws Exception {
+                probe();
+            }
+        });
+    }
+
+    @Test
+    public void testProbeTimeout() throws Exception {
+        // The connection is accepted by the backlog, but nothing is sent
+        long start = System.nanoTime();
+        expectException(JSchException.class, new ACSTestHelper.ExceptionRunnable() {
+            @Override
+            public void run() throws Exception {
+                probe();
+            }
+        });
+        assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 10);
+    }
+
+    @Test
+    public void testRequestTimeoutSeconds() {
+        assertEquals(40, ConfigurationVerifier.requestTimeoutSeconds(new AzureTransportSettings(10, 30, 0)));
+        // SDK defaults
+        assertEquals(120, ConfigurationVerifier.requestTimeoutSeconds(AzureTransportSettings.DEFAULT));
+        assertEquals(70, ConfigurationVerifier.requestTimeoutSeconds(new AzureTransportSettings(10, 0, 0)));
+    }
+
+    @Test
+    public void testSshFingerprint() {
+        String fingerprint = ConfigurationVerifier.fingerprint(sshCredentials("azureuser", "key"));
+        assertEquals(fingerprint, ConfigurationVerifier.fingerprint(sshCredentials("azureuser", "key")));
+        assertNotEquals(fingerprint, ConfigurationVerifier.fingerprint(sshCredentials("azureuser", "rotated")));
+        assertNotEquals(fingerprint, ConfigurationVerifier.fingerprint(sshCredentials("root", "key")));
+        assertEquals("", ConfigurationVerifier.fingerprint(null));
+    }
+
+    private static SSHUserPrivateKey sshCredentials(String username, String privateKey) {
+        return sshCredentials(username, Collections.singletonList(privateKey));
+    }
+
+    private static SSHUserPrivateKey sshCredentials(String username, List<String> privateKeys) {
+        SSHUserPrivateKey credentials = mock(SSHUserPrivateKey.class);
+        when(credentials.getUsername()).thenReturn(username);
+        when(credentials.getPrivateKeys()).thenReturn(privateKeys);
+        return credentials;
+    }
+
+    private void probe() throws JSchException {
+        ConfigurationVerifier.probeSsh(server.getInetAddress().getHostAddress(), server.getLocalPort(),
+                sshCredentials("azureuser", Collections.<String>emptyList()), 500);
+    }
+
+    private void serve(final String content) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try (Socket socket = server.accept()) {
+                    OutputStream out = socket.getOutputStream();
+                    out.write(content.getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                } catch (IOException e) {
+                    // The server is closed
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -1,5 +1,6 @@
 package com.microsoft.jenkins.acs.commands;
 
+import com.microsoft.azure.CloudException;
 import com.microsoft.azure.Page;
 import com.microsoft.azure.PagedList;
 import com.microsoft.azure.management.Azure;
@@ -25,13 +26,22 @@ import com.microsoft.azure.management.network.SecurityRuleAccess;
 import com.microsoft.azure.management.network.SecurityRuleDirection;
 import com.microsoft.azure.management.network.Subnet;
 import com.microsoft.azure.management.network.TransportProtocol;
+import com.microsoft.azure.management.network.implementation.LoadBalancerInner;
+import com.microsoft.azure.management.network.implementation.NetworkSecurityGroupInner;
 import com.microsoft.azure.management.network.model.HasNetworkInterfaces;
+import com.microsoft.jenkins.acs.Messages;
+import com.microsoft.jenkins.acs.orchestrators.LoadBalancerSettings;
 import com.microsoft.jenkins.acs.orchestrators.ServicePort;
+import com.microsoft.jenkins.acs.orchestrators.ServicePortRange;
+import com.microsoft.jenkins.acs.util.Constants;
+import com.microsoft.jenkins.acs.util.PortRangeSet;
 import com.microsoft.rest.RestException;
 import com.microsoft.rest.ServiceCallback;
 import com.microsoft.rest.ServiceFuture;
+import okhttp3.ResponseBody;
 import org.junit.Assert;
 import org.junit.Test;
+import retrofit2.Response;
 import rx.Observable;
 
 import java.io.IOException;
@@ -44,10 +54,17 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.startsWith;
 import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.RETURNS_SELF;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -139,6 +156,40 @@ public class EnablePortCommandTest {
         Assert.assertEquals(new HashSet<>(Collections.singletonList(8080)), portsToOpen);
     }
 
+    @Test
+    public void filterPortsToOpen_AugmentedRule() throws EnablePortCommand.InvalidConfigException {
+        final NetworkSecurityRule rule =
+                mockNetworkSecurityRule(10, null, SecurityRuleAccess.ALLOW, SecurityRuleDirection.INBOUND);
+        when(rule.destinationPortRanges()).thenReturn(Arrays.asList("80", "8000-8100,9000"));
+        final Set<Integer> portsToOpen = new HashSet<>(Arrays.asList(80, 443, 8080, 9000, 9001));
+
+        final int maxPriority = EnablePortCommand.filterPortsToOpen(
+                Collections.singletonList(rule), portsToOpen, System.out);
+        Assert.assertEquals(10, maxPriority);
+        Assert.assertEquals(new HashSet<>(Arrays.asList(443, 9001)), portsToOpen);
+    }
+
+    @Test
+    public void filterPortsToOpen_LargeRange() throws EnablePortCommand.InvalidConfigException {
+        final Collection<NetworkSecurityRule> rules = Arrays.asList(
+                mockNetworkSecurityRule(10, "30000-30999", SecurityRuleAccess.ALLOW, SecurityRuleDirection.INBOUND),
+                mockNetworkSecurityRule(30, "31500", SecurityRuleAccess.ALLOW, SecurityRuleDirection.INBOUND),
+                mockNetworkSecurityRule(20, "31000-31999", SecurityRuleAccess.DENY, SecurityRuleDirection.INBOUND)
+        );
+        final Set<Integer> portsToOpen = new HashSet<>();
+        for (int port = 30000; port <= 32000; ++port) {
+            portsToOpen.add(port);
+        }
+
+        final int maxPriority = EnablePortCommand.filterPortsToOpen(rules, portsToOpen, System.out);
+        Assert.assertEquals(30, maxPriority);
+        Assert.assertEquals(1000, portsToOpen.size());
+        Assert.assertFalse(portsToOpen.contains(30999));
+        Assert.assertTrue(portsToOpen.contains(31000));
+        Assert.assertFalse(portsToOpen.contains(31500));
+        Assert.assertTrue(portsToOpen.contains(32000));
+    }
+
     private NetworkSecurityGroup mockNetworkSecurityGroup(String name, Map<String, NetworkSecurityRule> rulesSet) {
         final NetworkSecurityGroup nsg = mock(NetworkSecurityGroup.class);
         when(nsg.name()).thenReturn(name);
@@ -219,6 +270,86 @@ public class EnablePortCommandTest {
         ).attach();
     }
 
+    @Test
+    public void createSecurityRulesUpToDate() throws IOException, EnablePortCommand.InvalidConfigException {
+        final Map<String, NetworkSecurityRule> rulesSet = new HashMap<>();
+        rulesSet.put("rule1", mockNetworkSecurityRule(10, "8080-8081", SecurityRuleAccess.ALLOW, SecurityRuleDirection.INBOUND));
+
+        final NetworkSecurityGroup nsg = mockNetworkSecurityGroup("dcos-agent-public-nsg-xxx", rulesSet);
+        final Azure azureClient = mockAzureClientWithNetworkSecurityGroups(Collections.singletonList(nsg));
+
+        EnablePortCommand.createSecurityRules(
+                azureClient,
+                "resource-group",
+                "dcos",
+                Arrays.asList(new ServicePort(8080, 8080, Protocol.TCP), new ServicePort(8081, 8081, Protocol.TCP)),
+                System.out
+        );
+
+        verify(nsg, never()).update();
+    }
+
+    @Test
+    public void createSecurityRulesForRange() throws IOException, EnablePortCommand.InvalidConfigException {
+        final Map<String, NetworkSecurityRule> rulesSet = new HashMap<>();
+        rulesSet.put("rule1", mockNetworkSecurityRule(10, "30500-30999", SecurityRuleAccess.ALLOW, SecurityRuleDirection.INBOUND));
+
+        final NetworkSecurityGroup nsg = mockNetworkSecurityGroup("swarm-agent-public-nsg-xxx", rulesSet);
+        final Azure azureClient = mockAzureClientWithNetworkSecurityGroups(Collections.singletonList(nsg));
+
+        final List<ServicePortRange> servicePorts = Arrays.asList(
+                new ServicePortRange(30000, 32000, 30000, Protocol.TCP),
+                new ServicePort(8080, 80, Protocol.TCP)
+        );
+
+        EnablePortCommand.createSecurityRules(
+                azureClient,
+                "resource-group",
+                "swarm",
+                servicePorts,
+                System.out
+        );
+
+        final NetworkSecurityGroup.Update update = nsg.update();
+
+        verify(update
+                .defineRule("Allow_30000-30499")
+                .allowInbound()
+                .fromAddress("Internet")
+                .fromAnyPort()
+                .toAnyAddress()
+                .toPortRange(30000, 30499)
+                .withAnyProtocol()
+                .withDescription(anyString())
+                .withPriority(20)
+        ).attach();
+
+        verify(update
+                .defineRule("Allow_31000-32000")
+                .allowInbound()
+                .fromAddress("Internet")
+                .fromAnyPort()
+                .toAnyAddress()
+                .toPortRange(31000, 32000)
+                .withAnyProtocol()
+                .withDescription(anyString())
+                .withPriority(30)
+        ).attach();
+
+        verify(update
+                .defineRule("Allow_8080")
+                .allowInbound()
+                .fromAddress("Internet")
+                .fromAnyPort()
+                .toAnyAddress()
+                .toPort(8080)
+                .withAnyProtocol()
+                .withDescription(anyString())
+                .withPriority(40)
+        ).attach();
+        verify(update).apply();
+    }
+
     private LoadBalancingRule mockLoadBalancingRule(String name, int frontendPort, TransportProtocol protocol) {
         final LoadBalancingRule rule = mock(LoadBalancingRule.class);
 
@@ -329,6 +460,248 @@ public class EnablePortCommandTest {
         Assert.assertEquals(LoadDistribution.DEFAULT, update.rules.get(1).loadDistribution);
     }
 
+    @Test
+    public void createLoadBalancerRules_ReuseProbes() throws IOException, EnablePortCommand.InvalidConfigException {
+        final Map<String, LoadBalancerBackend> backends = new HashMap<>();
+        final LoadBalancerBackend backend = mock(LoadBalancerBackend.class);
+        when(backend.name()).thenReturn("backend");
+        backends.put("backend", backend);
+
+        final Map<String, LoadBalancerFrontend> frontends = new HashMap<>();
+        final LoadBalancerFrontend frontend = mock(LoadBalancerFrontend.class);
+        when(frontend.name()).thenReturn("frontend");
+        frontends.put("frontend", frontend);
+
+        final LoadBalancer lb = mockLoadBalancer(
+                "swarm-agent-lb-xxx", backends, frontends, new HashMap<String, LoadBalancingRule>());
+        final LoadBalancerTcpProbe existingProbe = mock(LoadBalancerTcpProbe.class);
+        when(existingProbe.name()).thenReturn("customProbe");
+        when(existingProbe.port()).thenReturn(8082);
+        when(lb.tcpProbes()).thenReturn(Collections.singletonMap("customProbe", existingProbe));
+
+        final MockLoadBalancerUpdate update = new MockLoadBalancerUpdate();
+        when(lb.update()).thenReturn(update);
+
+        final Azure azureClient = mockAzureClientWithLoadBalancers(Collections.singletonList(lb));
+
+        final List<ServicePort> servicePorts = Arrays.asList(
+                new ServicePort(8081, 8081, Protocol.TCP),
+                new ServicePort(8081, 8081, Constants.UDP),
+                new ServicePort(8082, 8082, Protocol.TCP)
+        );
+
+        EnablePortCommand.createLoadBalancerRules(
+                azureClient,
+                "resource-group",
+                "swarm",
+                servicePorts,
+                System.out
+        );
+
+        Assert.assertTrue(update.isApplied);
+        Assert.assertEquals(1, update.tcpProbes.size());
+        Assert.assertEquals("tcpPort8081Probe", update.tcpProbes.get(0).name);
+
+        Assert.assertEquals(3, update.rules.size());
+        Assert.assertEquals(TransportProtocol.TCP, update.rules.get(0).protocol);
+        Assert.assertEquals("tcpPort8081Probe", update.rules.get(0).probe);
+        Assert.assertEquals(TransportProtocol.UDP, update.rules.get(1).protocol);
+        Assert.assertEquals("tcpPort8081Probe", update.rules.get(1).probe);
+        Assert.assertEquals("customProbe", update.rules.get(2).probe);
+    }
+
+    private LoadBalancerTcpProbe mockTcpProbe(String name, int port) {
+        final LoadBalancerTcpProbe probe = mock(LoadBalancerTcpProbe.class);
+        when(probe.name()).thenReturn(name);
+        when(probe.port()).thenReturn(port);
+        return probe;
+    }
+
+    @Test
+    public void createLoadBalancerRules_RemoveUnusedProbes()
+            throws IOException, EnablePortCommand.InvalidConfigException {
+        final Map<String, LoadBalancerBackend> backends = new HashMap<>();
+        backends.put("backend", mock(LoadBalancerBackend.class));
+        final Map<String, LoadBalancerFrontend> frontends = new HashMap<>();
+        frontends.put("frontend", mock(LoadBalancerFrontend.class));
+
+        final LoadBalancerTcpProbe usedProbe = mockTcpProbe("tcpPort8080Probe", 8080);
+        final LoadBalancingRule rule = mockLoadBalancingRule("rule1", 8080, TransportProtocol.TCP);
+        when(rule.probe()).thenReturn(usedProbe);
+        final Map<String, LoadBalancingRule> rulesSet = new HashMap<>();
+        rulesSet.put("rule1", rule);
+
+        final Map<String, LoadBalancerTcpProbe> probes = new HashMap<>();
+        probes.put("tcpPort8080Probe", usedProbe);
+        probes.put("tcpPort9000Probe", mockTcpProbe("tcpPort9000Probe", 9000));
+        probes.put("customProbe", mockTcpProbe("customProbe", 9001));
+
+        final LoadBalancer lb = mockLoadBalancer("dcos-agent-lb-xxx", backends, frontends, rulesSet);
+        when(lb.tcpProbes()).thenReturn(probes);
+        final MockLoadBalancerUpdate update = new MockLoadBalancerUpdate();
+        when(lb.update()).thenReturn(update);
+        final Azure azureClient = mockAzureClientWithLoadBalancers(Collections.singletonList(lb));
+
+        // Moving the rule to a probe with other settings leaves its previous probe unused
+        final LoadBalancerSettings settings = new LoadBalancerSettings(null, null, null, null, 10, null);
+        EnablePortCommand.createLoadBalancerRules(
+                azureClient,
+                "resource-group",
+                "dcos",
+                Collections.singletonList(new ServicePort(8080, 8080, Protocol.TCP, settings)),
+                System.out
+        );
+
+        Assert.assertTrue(update.isApplied);
+        Assert.assertTrue(update.rules.isEmpty());
+        Assert.assertEquals(1, update.tcpProbes.size());
+        verify(update.updatedRules.get("rule1")).withProbe(update.tcpProbes.get(0).name);
+        // The probes that were unused already are not known to be created by this plugin, so they are kept
+        Assert.assertEquals(Collections.singletonList("tcpPort8080Probe"), update.removedProbes);
+    }
+
+    @Test
+    public void createLoadBalancerRules_KeepUnusedProbes()
+            throws IOException, EnablePortCommand.InvalidConfigException {
+        final Map<String, LoadBalancerBackend> backends = new HashMap<>();
+        backends.put("backend", mock(LoadBalancerBackend.class));
+        final Map<String, LoadBalancerFrontend> frontends = new HashMap<>();
+        frontends.put("frontend", mock(LoadBalancerFrontend.class));
+
+        final LoadBalancerTcpProbe usedProbe = mockTcpProbe("tcpPort8080Probe", 8080);
+        final LoadBalancingRule rule = mockLoadBalancingRule("rule1", 8080, TransportProtocol.TCP);
+        when(rule.probe()).thenReturn(usedProbe);
+        final Map<String, LoadBalancingRule> rulesSet = new HashMap<>();
+        rulesSet.put("rule1", rule);
+
+        final Map<String, LoadBalancerTcpProbe> probes = new HashMap<>();
+        probes.put("tcpPort8080Probe", usedProbe);
+        probes.put("tcpPort9000Probe", mockTcpProbe("tcpPort9000Probe", 9000));
+
+        final LoadBalancer lb = mockLoadBalancer("dcos-agent-lb-xxx", backends, frontends, rulesSet);
+        when(lb.tcpProbes()).thenReturn(probes);
+        final Azure azureClient = mockAzureClientWithLoadBalancers(Collections.singletonList(lb));
+
+        EnablePortCommand.createLoadBalancerRules(
+                azureClient,
+                "resource-group",
+                "dcos",
+                Collections.singletonList(new ServicePort(8080, 8080, Protocol.TCP)),
+                System.out
+        );
+
+        verify(lb, never()).update();
+    }
+
+    @Test
+    public void createLoadBalancerRules_WithSettings() throws IOException, EnablePortCommand.InvalidConfigException {
+        final Map<String, LoadBalancerBackend> backends = new HashMap<>();
+        backends.put("backend", mock(LoadBalancerBackend.class));
+        final Map<String, LoadBalancerFrontend> frontends = new HashMap<>();
+        frontends.put("frontend", mock(LoadBalancerFrontend.class));
+
+        final LoadBalancer lb = mockLoadBalancer(
+                "dcos-agent-lb-xxx", backends, frontends, new HashMap<String, LoadBalancingRule>());
+        final MockLoadBalancerUpdate update = new MockLoadBalancerUpdate();
+        when(lb.update()).thenReturn(update);
+        final Azure azureClient = mockAzureClientWithLoadBalancers(Collections.singletonList(lb));
+
+        final LoadBalancerSettings settings =
+                new LoadBalancerSettings(15, LoadDistribution.SOURCE_IP, true, null, 10, null);
+        EnablePortCommand.createLoadBalancerRules(
+                azureClient,
+                "resource-group",
+                "dcos",
+                Collections.singletonList(new ServicePort(8081, 8081, Protocol.TCP, settings)),
+                System.out
+        );
+
+        Assert.assertTrue(update.isApplied);
+        Assert.assertEquals(1, update.tcpProbes.size());
+        Assert.assertTrue(update.tcpProbes.get(0).name.startsWith("tcpPort8081Probe-"));
+        Assert.assertEquals(10, update.tcpProbes.get(0).intervalInSeconds);
+        Assert.assertEquals(0, update.tcpProbes.get(0).numberOfProbes);
+
+        Assert.assertEquals(1, update.rules.size());
+        Assert.assertEquals(update.tcpProbes.get(0).name, update.rules.get(0).probe);
+        Assert.assertEquals(15, update.rules.get(0).idleTimeoutInMinutes);
+        Assert.assertEquals(LoadDistribution.SOURCE_IP, update.rules.get(0).loadDistribution);
+        Assert.assertEquals(Boolean.TRUE, update.rules.get(0).floatingIp);
+    }
+
+    @Test
+    public void createLoadBalancerRules_UpdateDriftedRules()
+            throws IOException, EnablePortCommand.InvalidConfigException {
+        final Map<String, LoadBalancerBackend> backends = new HashMap<>();
+        backends.put("backend", mock(LoadBalancerBackend.class));
+        final Map<String, LoadBalancerFrontend> frontends = new HashMap<>();
+        frontends.put("frontend", mock(LoadBalancerFrontend.class));
+
+        final Map<String, LoadBalancingRule> rulesSet = new HashMap<>();
+        final Map<String, LoadBalancerTcpProbe> probes = new HashMap<>();
+        for (int port : new int[]{8080, 8081}) {
+            final LoadBalancerTcpProbe probe = mockTcpProbe("tcpPort" + port + "Probe", port);
+            final LoadBalancingRule rule = mockLoadBalancingRule("rule" + port, port, TransportProtocol.TCP);
+            when(rule.probe()).thenReturn(probe);
+            when(rule.idleTimeoutInMinutes()).thenReturn(port == 8080 ? 4 : 15);
+            when(rule.loadDistribution()).thenReturn(LoadDistribution.DEFAULT);
+            rulesSet.put(rule.name(), rule);
+            probes.put(probe.name(), probe);
+        }
+
+        final LoadBalancer lb = mockLoadBalancer("dcos-agent-lb-xxx", backends, frontends, rulesSet);
+        when(lb.tcpProbes()).thenReturn(probes);
+        final MockLoadBalancerUpdate update = new MockLoadBalancerUpdate();
+        when(lb.update()).thenReturn(update);
+        final Azure azureClient = mockAzureClientWithLoadBalancers(Collections.singletonList(lb));
+
+        final LoadBalancerSettings settings = new LoadBalancerSettings(15, null, null, null, null, null);
+        EnablePortCommand.createLoadBalancerRules(
+                azureClient,
+                "resource-group",
+                "dcos",
+                Arrays.asList(
+                        new ServicePort(8080, 8080, Protocol.TCP, settings),
+                        new ServicePort(8081, 8081, Protocol.TCP, settings)),
+                System.out
+        );
+
+        Assert.assertTrue(update.isApplied);
+        Assert.assertTrue(update.rules.isEmpty());
+        Assert.assertTrue(update.tcpProbes.isEmpty());
+        Assert.assertEquals(Collections.singleton("rule8080"), update.updatedRules.keySet());
+        final LoadBalancingRule.Update ruleUpdate = update.updatedRules.get("rule8080");
+        verify(ruleUpdate).withIdleTimeoutInMinutes(15);
+        verify(ruleUpdate).withProbe("tcpPort8080Probe");
+        verify(ruleUpdate, never()).withLoadDistribution(any(LoadDistribution.class));
+        verify(ruleUpdate, never()).withFloatingIP(anyBoolean());
+        verify(ruleUpdate).parent();
+    }
+
+    @Test
+    public void createLoadBalancerRules_UpToDate() throws IOException, EnablePortCommand.InvalidConfigException {
+        final Map<String, LoadBalancerBackend> backends = new HashMap<>();
+        backends.put("backend", mock(LoadBalancerBackend.class));
+        final Map<String, LoadBalancerFrontend> frontends = new HashMap<>();
+        frontends.put("frontend", mock(LoadBalancerFrontend.class));
+
+        final Map<String, LoadBalancingRule> rulesSet = new HashMap<>();
+        rulesSet.put("rule1", mockLoadBalancingRule("rule1", 8080, TransportProtocol.TCP));
+
+        final LoadBalancer lb = mockLoadBalancer("dcos-agent-lb-xxx", backends, frontends, rulesSet);
+        final Azure azureClient = mockAzureClientWithLoadBalancers(Collections.singletonList(lb));
+
+        EnablePortCommand.createLoadBalancerRules(
+                azureClient,
+                "resource-group",
+                "dcos",
+                Collections.singletonList(new ServicePort(8080, 8080, Protocol.TCP)),
+                System.out
+        );
+
+        verify(lb, never()).update();
+    }
+
     @Test
     public void createLoadBalancerRules_MissMatchBackendFrontend() throws IOException {
         final Map<String, LoadBalancerBackend> backends = new HashMap<>();
@@ -363,6 +736,334 @@ public class EnablePortCommandTest {
         }
     }
 
+    @Test
+    public void createLoadBalancerRules_RangeTooWide() throws Exception {
+        final Map<String, LoadBalancerBackend> backends = new HashMap<>();
+        backends.put("backend", mock(LoadBalancerBackend.class));
+        final Map<String, LoadBalancerFrontend> frontends = new HashMap<>();
+        frontends.put("frontend", mock(LoadBalancerFrontend.class));
+        final LoadBalancer lb = mockLoadBalancer(
+                "dcos-agent-lb-xxx", backends, frontends, new HashMap<String, LoadBalancingRule>());
+        final MockLoadBalancerUpdate update = new MockLoadBalancerUpdate();
+        when(lb.update()).thenReturn(update);
+        final Azure azureClient = mockAzureClientWithLoadBalancers(Collections.singletonList(lb));
+
+        EnablePortCommand.createLoadBalancerRules(
+                azureClient,
+                "resource-group",
+                "dcos",
+                Arrays.asList(
+                        new ServicePortRange(8080, 8080, 8080, Protocol.TCP),
+                        new ServicePortRange(30000, 32000, 30000, Protocol.TCP),
+                        new ServicePortRange(8084, 8085, 8084, Protocol.TCP)),
+                System.out);
+
+        // The wide range is left to the security group, the others get their rules
+        Assert.assertTrue(update.isApplied);
+        Assert.assertEquals(3, update.rules.size());
+    }
+
+    @Test
+    public void expandLoadBalancedPorts() {
+        final List<ServicePortRange> servicePorts = new ArrayList<>();
+        servicePorts.add(new ServicePortRange(9000, 9000 + EnablePortCommand.MAX_LOAD_BALANCING_RULES - 3,
+                9000, Protocol.TCP));
+        servicePorts.add(new ServicePortRange(10000, 10001, 10000, Protocol.TCP));
+        servicePorts.add(new ServicePortRange(8080, 8080, 8080, Protocol.TCP));
+        servicePorts.add(new ServicePortRange(8081, 8081, 8081, Protocol.TCP));
+
+        final List<ServicePort> expanded = EnablePortCommand.expandLoadBalancedPorts(servicePorts, System.out);
+
+        // The single ports are reserved first, so the second range no longer fits
+        Assert.assertEquals(EnablePortCommand.MAX_LOAD_BALANCING_RULES, expanded.size());
+        for (ServicePort servicePort : expanded) {
+            Assert.assertTrue(servicePort.getHostPort() < 10000);
+        }
+    }
+
+    private NetworkSecurityRule mockGeneratedRule(String name, int priority, String destinationPortRange) {
+        final NetworkSecurityRule rule = mockNetworkSecurityRule(
+                priority, destinationPortRange, SecurityRuleAccess.ALLOW, SecurityRuleDirection.INBOUND);
+        when(rule.name()).thenReturn(name);
+        when(rule.description()).thenReturn(EnablePortCommand.GENERATED_RULE_MARKER + "Allow traffic");
+        return rule;
+    }
+
+    private NetworkSecurityRule mockUserRule(String name, int priority, String destinationPortRange) {
+        final NetworkSecurityRule rule = mockNetworkSecurityRule(
+                priority, destinationPortRange, SecurityRuleAccess.ALLOW, SecurityRuleDirection.INBOUND);
+        when(rule.name()).thenReturn(name);
+        when(rule.description()).thenReturn("Allow HTTPS");
+        return rule;
+    }
+
+    private NetworkSecurityRule mockLegacyRule(int port, int priority) {
+        final NetworkSecurityRule rule = mockNetworkSecurityRule(
+                priority, String.valueOf(port), SecurityRuleAccess.ALLOW, SecurityRuleDirection.INBOUND);
+        when(rule.name()).thenReturn("Allow_" + port);
+        when(rule.description()).thenReturn(Messages.EnablePortCommand_allowTraffic(String.valueOf(port)));
+        return rule;
+    }
+
+    @Test
+    public void isGeneratedRule() {
+        Assert.assertTrue(EnablePortCommand.isGeneratedRule(mockGeneratedRule("Allow_8080", 100, "8080")));
+        Assert.assertTrue(EnablePortCommand.isGeneratedRule(mockGeneratedRule("Allow_9000-9010", 100, "9000-9010")));
+        Assert.assertTrue(EnablePortCommand.isGeneratedRule(mockGeneratedRule("Allow_ServicePorts_1", 100, "80")));
+        Assert.assertFalse(EnablePortCommand.isGeneratedRule(mockGeneratedRule("AllowHttps", 100, "443")));
+        // same naming, but not created by the plugin
+        Assert.assertFalse(EnablePortCommand.isGeneratedRule(mockUserRule("Allow_443", 100, "443")));
+        // created before the marker was introduced
+        Assert.assertTrue(EnablePortCommand.isGeneratedRule(mockLegacyRule(8080, 100)));
+        final NetworkSecurityRule mismatch = mockLegacyRule(8080, 100);
+        when(mismatch.name()).thenReturn("Allow_8081");
+        Assert.assertFalse(EnablePortCommand.isGeneratedRule(mismatch));
+    }
+
+    @Test
+    public void compactSecurityRules() throws EnablePortCommand.InvalidConfigException {
+        final Map<String, NetworkSecurityRule> rulesSet = new HashMap<>();
+        rulesSet.put("ssh", mockNetworkSecurityRule(100, "22", SecurityRuleAccess.ALLOW, SecurityRuleDirection.INBOUND));
+        rulesSet.put("Allow_8080", mockGeneratedRule("Allow_8080", 110, "8080"));
+        rulesSet.put("Allow_8081", mockGeneratedRule("Allow_8081", 120, "8081"));
+        rulesSet.put("Allow_9000-9010", mockGeneratedRule("Allow_9000-9010", 130, "9000-9010"));
+        final NetworkSecurityGroup nsg = mockNetworkSecurityGroup("dcos-agent-public-nsg-xxx", rulesSet);
+
+        EnablePortCommand.compactSecurityRules(nsg, PortRangeSet.parse("22,8080-8082"), System.out);
+
+        final NetworkSecurityGroup.Update update = nsg.update();
+        verify(update).withoutRule("Allow_8080");
+        verify(update).withoutRule("Allow_8081");
+        verify(update).withoutRule("Allow_9000-9010");
+        verify(update.defineRule("Allow_ServicePorts_1")
+                .allowInbound()
+                .fromAddress("Internet")
+                .fromAnyPort()
+                .toAnyAddress()
+        ).toPortRanges("8080-8082");
+        verify(update.defineRule("Allow_ServicePorts_1")
+                .allowInbound()
+                .fromAddress("Internet")
+                .fromAnyPort()
+                .toAnyAddress()
+                .toPortRanges("8080-8082")
+                .withAnyProtocol()
+        ).withDescription(startsWith(EnablePortCommand.GENERATED_RULE_MARKER));
+        verify(update).apply();
+    }
+
+    @Test
+    public void compactSecurityRulesLegacyRules() throws EnablePortCommand.InvalidConfigException {
+        final Map<String, NetworkSecurityRule> rulesSet = new HashMap<>();
+        rulesSet.put("Allow_8080", mockLegacyRule(8080, 110));
+        rulesSet.put("Allow_8081", mockLegacyRule(8081, 120));
+        rulesSet.put("Allow_443", mockUserRule("Allow_443", 130, "443"));
+        final NetworkSecurityGroup nsg = mockNetworkSecurityGroup("dcos-agent-public-nsg-xxx", rulesSet);
+
+        EnablePortCommand.compactSecurityRules(nsg, PortRangeSet.parse("443,8080-8082"), System.out);
+
+        final NetworkSecurityGroup.Update update = nsg.update();
+        verify(update).withoutRule("Allow_8080");
+        verify(update).withoutRule("Allow_8081");
+        verify(update, never()).withoutRule("Allow_443");
+        verify(update.defineRule("Allow_ServicePorts_1")
+                .allowInbound()
+                .fromAddress("Internet")
+                .fromAnyPort()
+                .toAnyAddress()
+        ).toPortRanges("8080-8082");
+        verify(update).apply();
+    }
+
+    @Test
+    public void compactSecurityRulesKeepsUserRules() throws EnablePortCommand.InvalidConfigException {
+        final Map<String, NetworkSecurityRule> rulesSet = new HashMap<>();
+        rulesSet.put("Allow_443", mockUserRule("Allow_443", 100, "443"));
+        rulesSet.put("Allow_8080", mockGeneratedRule("Allow_8080", 110, "8080"));
+        final NetworkSecurityGroup nsg = mockNetworkSecurityGroup("dcos-agent-public-nsg-xxx", rulesSet);
+
+        EnablePortCommand.compactSecurityRules(nsg, PortRangeSet.parse("8080"), System.out);
+
+        final NetworkSecurityGroup.Update update = nsg.update();
+        verify(update).withoutRule("Allow_8080");
+        verify(update, never()).withoutRule("Allow_443");
+        verify(update).apply();
+    }
+
+    @Test
+    public void compactSecurityRulesUpToDate() throws EnablePortCommand.InvalidConfigException {
+        final Map<String, NetworkSecurityRule> rulesSet = new HashMap<>();
+        rulesSet.put("Allow_ServicePorts_1", mockGeneratedRule("Allow_ServicePorts_1", 100, "80,8080-8082"));
+        final NetworkSecurityGroup nsg = mockNetworkSecurityGroup("dcos-agent-public-nsg-xxx", rulesSet);
+
+        EnablePortCommand.compactSecurityRules(nsg, PortRangeSet.parse("80,8080-8082"), System.out);
+
+        verify(nsg, never()).update();
+    }
+
+    @Test
+    public void findByCachedId() {
+        final NetworkSecurityGroup nsg = mockNetworkSecurityGroup(
+                "dcos-agent-public-nsg-xxx", new HashMap<String, NetworkSecurityRule>());
+        final Azure azureClient = mockAzureClientWithNetworkSecurityGroups(Collections.singletonList(nsg));
+        when(azureClient.networkSecurityGroups().getById("nsg-id")).thenReturn(nsg);
+
+        final LoadBalancer lb = mockLoadBalancer("dcos-agent-lb-xxx", new HashMap<String, LoadBalancerBackend>(),
+                new HashMap<String, LoadBalancerFrontend>(), new HashMap<String, LoadBalancingRule>());
+        final LoadBalancers lbsMgr = mockAzureClientWithLoadBalancers(Collections.singletonList(lb)).loadBalancers();
+        when(azureClient.loadBalancers()).thenReturn(lbsMgr);
+        when(lbsMgr.getById("lb-id")).thenReturn(lb);
+
+        Assert.assertSame(nsg, EnablePortCommand.findSecurityGroup(
+                azureClient, "resource-group", "dcos", "nsg-id", System.out));
+        Assert.assertSame(lb, EnablePortCommand.findLoadBalancer(
+                azureClient, "resource-group", "dcos", "lb-id", System.out));
+        verify(azureClient.networkSecurityGroups(), never()).listByResourceGroup(anyString());
+        verify(lbsMgr, never()).listByResourceGroup(anyString());
+    }
+
+    @Test
+    public void findByCachedId_FallbackToScan() {
+        final NetworkSecurityGroup nsg = mockNetworkSecurityGroup(
+                "dcos-agent-public-nsg-xxx", new HashMap<String, NetworkSecurityRule>());
+        final NetworkSecurityGroup other = mockNetworkSecurityGroup(
+                "other-nsg", new HashMap<String, NetworkSecurityRule>());
+        final Azure azureClient = mockAzureClientWithNetworkSecurityGroups(Arrays.asList(other, nsg));
+        when(azureClient.networkSecurityGroups().getById("stale-id")).thenReturn(other);
+
+        Assert.assertSame(nsg, EnablePortCommand.findSecurityGroup(
+                azureClient, "resource-group", "dcos", "stale-id", System.out));
+        Assert.assertSame(nsg, EnablePortCommand.findSecurityGroup(
+                azureClient, "resource-group", "dcos", "missing-id", System.out));
+        Assert.assertNull(EnablePortCommand.findSecurityGroup(
+                azureClient, "resource-group", "acs", null, System.out));
+    }
+
+    @Test
+    public void updateNetworkResources_SkipUnchanged() throws Exception {
+        final Azure azureClient = mockAzureClientWithEtags("nsg-etag", "lb-etag");
+        final List<ServicePortRange> servicePorts =
+                Collections.<ServicePortRange>singletonList(new ServicePort(8080, 8080, Protocol.TCP));
+        final EnablePortCommand.NetworkResourceState recorded = new EnablePortCommand.NetworkResourceState(
+                "nsg-id", "nsg-etag", "lb-id", "lb-etag",
+                EnablePortCommand.digestServicePorts("dcos", servicePorts, false));
+
+        Assert.assertSame(recorded, EnablePortCommand.updateNetworkResources(
+                azureClient, "resource-group", "dcos", servicePorts, recorded, false, 1, System.out));
+        verify(azureClient.networkSecurityGroups(), never()).listByResourceGroup(anyString());
+        verify(azureClient.loadBalancers(), never()).listByResourceGroup(anyString());
+    }
+
+    @Test
+    public void isUnchanged() {
+        final Azure azureClient = mockAzureClientWithEtags("nsg-etag", "lb-etag-2");
+        final List<ServicePortRange> servicePorts =
+                Collections.<ServicePortRange>singletonList(new ServicePort(8080, 8080, Protocol.TCP));
+        final String digest = EnablePortCommand.digestServicePorts("dcos", servicePorts, false);
+
+        Assert.assertFalse(EnablePortCommand.isUnchanged(azureClient, new EnablePortCommand.NetworkResourceState(
+                "nsg-id", "nsg-etag", "lb-id", "lb-etag", digest), digest));
+        Assert.assertTrue(EnablePortCommand.isUnchanged(azureClient, new EnablePortCommand.NetworkResourceState(
+                "nsg-id", "nsg-etag", "lb-id", "lb-etag-2", digest), digest));
+        Assert.assertFalse(EnablePortCommand.isUnchanged(azureClient, new EnablePortCommand.NetworkResourceState(
+                "nsg-id", "nsg-etag", "lb-id", "lb-etag-2", digest),
+                EnablePortCommand.digestServicePorts("dcos", servicePorts, true)));
+        Assert.assertFalse(EnablePortCommand.isUnchanged(azureClient, new EnablePortCommand.NetworkResourceState(
+                null, null, null, null, null), digest));
+    }
+
+    private Azure mockAzureClientWithEtags(String securityGroupEtag, String loadBalancerEtag) {
+        final NetworkSecurityGroup nsg = mockNetworkSecurityGroup(
+                "dcos-agent-public-nsg-xxx", new HashMap<String, NetworkSecurityRule>());
+        final NetworkSecurityGroupInner nsgInner = mock(NetworkSecurityGroupInner.class);
+        when(nsgInner.etag()).thenReturn(securityGroupEtag);
+        when(nsg.inner()).thenReturn(nsgInner);
+        final Azure azureClient = mockAzureClientWithNetworkSecurityGroups(Collections.singletonList(nsg));
+        when(azureClient.networkSecurityGroups().getById("nsg-id")).thenReturn(nsg);
+
+        final LoadBalancer lb = mockLoadBalancer("dcos-agent-lb-xxx", new HashMap<String, LoadBalancerBackend>(),
+                new HashMap<String, LoadBalancerFrontend>(), new HashMap<String, LoadBalancingRule>());
+        final LoadBalancerInner lbInner = mock(LoadBalancerInner.class);
+        when(lbInner.etag()).thenReturn(loadBalancerEtag);
+        when(lb.inner()).thenReturn(lbInner);
+        final LoadBalancers lbsMgr = mockAzureClientWithLoadBalancers(Collections.singletonList(lb)).loadBalancers();
+        when(lbsMgr.getById("lb-id")).thenReturn(lb);
+        when(azureClient.loadBalancers()).thenReturn(lbsMgr);
+        return azureClient;
+    }
+
+    private static CloudException cloudException(int code) {
+        return new CloudException("error", Response.error(code, ResponseBody.create(null, "")));
+    }
+
+    @Test
+    public void retryOnConflict() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final Callable<String> task = EnablePortCommand.retryOnConflict("phase", new Callable<String>() {
+            @Override
+            public String call() {
+                if (calls.incrementAndGet() == 1) {
+                    throw cloudException(409);
+                }
+                return "done";
+            }
+        }, System.out);
+
+        Assert.assertEquals("done", task.call());
+        Assert.assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void retryOnConflict_OtherErrors() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final Callable<String> task = EnablePortCommand.retryOnConflict("phase", new Callable<String>() {
+            @Override
+            public String call() {
+                calls.incrementAndGet();
+                throw cloudException(400);
+            }
+        }, System.out);
+
+        try {
+            task.call();
+            Assert.fail("Should throw CloudException");
+        } catch (CloudException e) {
+            Assert.assertEquals(1, calls.get());
+        }
+    }
+
+    @Test
+    public void updateNetworkResources_PropagatesFailure() throws Exception {
+        final Map<String, NetworkSecurityRule> rulesSet = new HashMap<>();
+        rulesSet.put("rule1", mockNetworkSecurityRule(10, "8080", SecurityRuleAccess.ALLOW, SecurityRuleDirection.INBOUND));
+        final NetworkSecurityGroup nsg = mockNetworkSecurityGroup("dcos-agent-public-nsg-xxx", rulesSet);
+        final NetworkSecurityGroups nsgsMgr =
+                mockAzureClientWithNetworkSecurityGroups(Collections.singletonList(nsg)).networkSecurityGroups();
+
+        // The load balancer phase fails as there is no frontend and backend
+        final LoadBalancer lb = mockLoadBalancer("dcos-agent-lb-xxx", new HashMap<String, LoadBalancerBackend>(),
+                new HashMap<String, LoadBalancerFrontend>(), new HashMap<String, LoadBalancingRule>());
+        final Azure azureClient = mockAzureClientWithLoadBalancers(Collections.singletonList(lb));
+        when(azureClient.networkSecurityGroups()).thenReturn(nsgsMgr);
+
+        try {
+            EnablePortCommand.updateNetworkResources(
+                    azureClient,
+                    "resource-group",
+                    "dcos",
+                    Collections.<ServicePortRange>singletonList(new ServicePort(8080, 8080, Protocol.TCP)),
+                    new EnablePortCommand.NetworkResourceState(null, null, null, null, null),
+                    false,
+                    1,
+                    System.out
+            );
+            Assert.fail("Should throw InvalidConfigException");
+        } catch (EnablePortCommand.InvalidConfigException e) {
+            // Should throw
+        }
+        verify(nsg, never()).update();
+    }
+
     private static final class MockLoadBalancerTcpProbe implements
             LoadBalancerTcpProbe.UpdateDefinitionStages.Blank<LoadBalancer.Update>,
             LoadBalancerTcpProbe.UpdateDefinitionStages.WithAttach<LoadBalancer.Update> {
@@ -370,6 +1071,8 @@ public class EnablePortCommandTest {
         private final MockLoadBalancerUpdate update;
         public final String name;
         public int port;
+        public int intervalInSeconds;
+        public int numberOfProbes;
 
         MockLoadBalancerTcpProbe(MockLoadBalancerUpdate update, String name) {
             this.update = update;
@@ -384,13 +1087,13 @@ public class EnablePortCommandTest {
 
         @Override
         public LoadBalancerTcpProbe.UpdateDefinitionStages.WithAttach<LoadBalancer.Update> withIntervalInSeconds(int seconds) {
-            Assert.fail("Should not reach");
+            this.intervalInSeconds = seconds;
             return this;
         }
 
         @Override
         public LoadBalancerTcpProbe.UpdateDefinitionStages.WithAttach<LoadBalancer.Update> withNumberOfProbes(int probes) {
-            Assert.fail("Should not reach");
+            this.numberOfProbes = probes;
             return this;
         }
 
@@ -419,6 +1122,7 @@ public class EnablePortCommandTest {
         public int frontendPort;
         public String probe;
         public TransportProtocol protocol;
+        public Boolean floatingIp;
 
         MockLoadBalancingRule(MockLoadBalancerUpdate update, String name) {
             this.update = update;
@@ -512,7 +1216,7 @@ public class EnablePortCommandTest {
 
         @Override
         public LoadBalancingRule.UpdateDefinitionStages.WithAttach<LoadBalancer.Update> withFloatingIP(boolean enabled) {
-            Assert.fail("Should not reach");
+            this.floatingIp = enabled;
             return this;
         }
 
@@ -538,6 +1242,8 @@ public class EnablePortCommandTest {
         public boolean isApplied;
         public final List<MockLoadBalancerTcpProbe> tcpProbes = new ArrayList<>();
         public final List<MockLoadBalancingRule> rules = new ArrayList<>();
+        public final List<String> removedProbes = new ArrayList<>();
+        public final Map<String, LoadBalancingRule.Update> updatedRules = new HashMap<>();
 
         @Override
         public LoadBalancer.Update withoutBackend(String name) {
@@ -636,8 +1342,9 @@ public class EnablePortCommandTest {
 
         @Override
         public LoadBalancingRule.Update updateLoadBalancingRule(String name) {
-            Assert.fail("Should not reach");
-            return null;
+            final LoadBalancingRule.Update rule = mock(LoadBalancingRule.Update.class, RETURNS_SELF);
+            updatedRules.put(name, rule);
+            return rule;
         }
 
         @Override
@@ -653,8 +1360,8 @@ public class EnablePortCommandTest {
 
         @Override
         public LoadBalancer.Update withoutProbe(String name) {
-            Assert.fail("Should not reach");
-            return null;
+            removedProbes.add(name);
+            return this;
         }
 
         @Override
@@ -10,14 +10,17 @@ import com.microsoft.azure.management.Azure;
 import com.microsoft.azure.management.containerservice.ContainerService;
 import com.microsoft.azure.management.containerservice.ContainerServiceOrchestratorTypes;
 import com.microsoft.azure.management.containerservice.ContainerServices;
+import com.microsoft.jenkins.acs.util.ContainerServiceMetadata;
 import com.microsoft.jenkins.azurecommons.command.CommandState;
 import org.junit.Before;
 import org.junit.Test;
 
 import static com.microsoft.jenkins.acs.commands.GetContainerServiceInfoCommand.TaskResult;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -67,6 +70,18 @@ public class GetContainerServiceInfoCommandTest {
         assertNull(result.getFqdn());
     }
 
+    @Test
+    public void testIsReusable() {
+        ContainerServiceMetadata metadata = new ContainerServiceMetadata();
+        metadata.setOrchestratorType(ORCHESTRATOR_TYPE.toString());
+        assertTrue(GetContainerServiceInfoCommand.isReusable(metadata, ORCHESTRATOR_TYPE));
+
+        // the recorded type may be stale, a mismatch is verified with Azure
+        assertFalse(GetContainerServiceInfoCommand.isReusable(metadata, ContainerServiceOrchestratorTypes.DCOS));
+        assertFalse(GetContainerServiceInfoCommand.isReusable(metadata, null));
+        assertFalse(GetContainerServiceInfoCommand.isReusable(null, ORCHESTRATOR_TYPE));
+    }
+
     private Azure prepareAzure() {
         Azure azure = mock(Azure.class);
 
@@ -6,6 +6,7 @@
 
 package com.microsoft.jenkins.acs.commands;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.microsoft.jenkins.acs.util.Constants;
 import com.microsoft.jenkins.azurecommons.JobContext;
 import com.microsoft.jenkins.azurecommons.remote.SSHClient;
@@ -27,13 +28,28 @@ import java.io.PrintStream;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
+import static com.microsoft.jenkins.acs.commands.MarathonDeploymentCommand.buildGroupDefinition;
+import static com.microsoft.jenkins.acs.commands.MarathonDeploymentCommand.checkGroupApp;
+import static com.microsoft.jenkins.acs.commands.MarathonDeploymentCommand.deployAppCommand;
 import static com.microsoft.jenkins.acs.commands.MarathonDeploymentCommand.nameForBuild;
+import static com.microsoft.jenkins.acs.commands.MarathonDeploymentCommand.isSettled;
+import static com.microsoft.jenkins.acs.commands.MarathonDeploymentCommand.normalizeGroupId;
+import static com.microsoft.jenkins.acs.commands.MarathonDeploymentCommand.parseDeploymentId;
+import static com.microsoft.jenkins.acs.commands.MarathonDeploymentCommand.parseStatusCode;
+import static com.microsoft.jenkins.acs.commands.MarathonDeploymentCommand.pollMaxTimeSeconds;
 import static com.microsoft.jenkins.acs.commands.MarathonDeploymentCommand.prepareCredentialsPath;
+import static com.microsoft.jenkins.acs.commands.MarathonDeploymentCommand.rolloutSecondsVariable;
+import static com.microsoft.jenkins.acs.commands.MarathonDeploymentCommand.trackDeployment;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
@@ -48,6 +64,8 @@ import static org.mockito.Mockito.when;
  */
 public class MarathonDeploymentCommandTest {
     private static final String USER = "azureuser";
+    private static final String SETTLED_APP = "{\"app\": {\"id\": \"/web\", \"instances\": 1, \"tasksRunning\": 1, "
+            + "\"tasksHealthy\": 1, \"healthChecks\": [{\"protocol\": \"HTTP\"}], \"deployments\": []}}";
     private static final FilePath WORKSPACE = new FilePath(new File(System.getProperty("java.io.tmpdir")));
 
     private MarathonDeploymentCommand command;
@@ -126,6 +144,214 @@ public class MarathonDeploymentCommandTest {
         assertEquals("/home/azureuser/acs-plugin-dcos.docker/test-dir", prepareCredentialsPath(null, "test-dir", one, user));
     }
 
+    @Test
+    public void testNormalizeGroupId() {
+        assertNull(normalizeGroupId(null));
+        assertNull(normalizeGroupId(" / "));
+        assertEquals("/pipeline", normalizeGroupId("pipeline"));
+        assertEquals("/team/pipeline-1.0", normalizeGroupId(" /team/pipeline-1.0/ "));
+
+        for (String invalid : new String[]{"Upper", "a//b", "-a", "a'b", "a b"}) {
+            try {
+                normalizeGroupId(invalid);
+                fail("Should not allow group ID " + invalid);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testBuildGroupDefinition() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        String group = buildGroupDefinition("/pipeline", Arrays.asList(
+                mapper.readTree("{\"id\": \"web\", \"instances\": 2}"),
+                mapper.readTree("{\"id\": \"/pipeline/worker\"}")));
+        assertEquals(mapper.readTree(
+                "{\"id\": \"/pipeline\", \"apps\": [{\"id\": \"web\", \"instances\": 2}, "
+                        + "{\"id\": \"/pipeline/worker\"}]}"),
+                mapper.readTree(group));
+    }
+
+    @Test
+    public void testCheckGroupApp() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        checkGroupApp("/pipeline", mapper.readTree("{\"id\": \"web\"}"), "web.json");
+        checkGroupApp("/pipeline", mapper.readTree("{\"id\": \"/pipeline/worker\"}"), "worker.json");
+
+        for (String invalid : new String[]{
+                "[{\"id\": \"web\"}]",
+                "{\"cmd\": \"sleep 1000\"}",
+                "{\"id\": \"\"}",
+                "{\"id\": \"/pipeline/sub\", \"apps\": []}",
+                "{\"id\": \"/other/web\"}",
+                "{\"id\": \"/pipeline-2/web\"}"}) {
+            try {
+                checkGroupApp("/pipeline", mapper.readTree(invalid), "app.json");
+                fail("Should reject " + invalid);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains("app.json"));
+            }
+        }
+    }
+
+    @Test
+    public void testDeployAppCommand() {
+        assertEquals("curl -i -H 'Content-Type: application/json' "
+                        + "-d@'app.json' http://localhost/marathon/v2/apps?force=true",
+                deployAppCommand("app.json", "/web", false));
+        assertEquals("curl -i -X PUT -H 'Content-Type: application/json' "
+                        + "-d@'app.json' 'http://localhost/marathon/v2/apps/team/web?force=true'",
+                deployAppCommand("app.json", "/team/web", true));
+    }
+
+    @Test
+    public void testParseDeploymentId() {
+        assertEquals("d1", parseDeploymentId("HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 201 Created\r\n"
+                + "Content-Type: application/json\r\n\r\n"
+                + "{\"id\": \"/web\", \"deployments\": [{\"id\": \"d1\"}]}"));
+        assertEquals("d2", parseDeploymentId("HTTP/1.1 200 OK\n\n{\"version\": \"v\", \"deploymentId\": \"d2\"}"));
+        assertNull(parseDeploymentId("HTTP/1.1 422 Unprocessable Entity\r\n\r\n{\"message\": \"invalid\"}"));
+        assertNull(parseDeploymentId("curl: (7) Failed to connect"));
+        assertNull(parseDeploymentId(null));
+    }
+
+    @Test
+    public void testParseStatusCode() {
+        assertEquals(201, parseStatusCode("HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 201 Created\r\n"
+                + "Content-Type: application/json\r\n\r\n{}"));
+        assertEquals(409, parseStatusCode("HTTP/1.1 409 Conflict\n\n{\"message\": \"locked\"}"));
+        assertEquals(-1, parseStatusCode("curl: (7) Failed to connect"));
+        assertEquals(-1, parseStatusCode(null));
+    }
+
+    @Test
+    public void testTrackDeployment() {
+        assertEquals("d1", trackDeployment("/web", false,
+                "HTTP/1.1 200 OK\r\n\r\n{\"version\": \"v\", \"deploymentId\": \"d1\"}", 0).getId());
+
+        for (String rejected : new String[]{
+                "HTTP/1.1 409 Conflict\r\n\r\n{\"message\": \"App is locked by one or more deployments.\"}",
+                "HTTP/1.1 422 Unprocessable Entity\r\n\r\n{\"message\": \"Object is not valid\"}",
+                "curl: (7) Failed to connect",
+                // accepted, but no deployment started
+                "HTTP/1.1 200 OK\r\n\r\n{\"id\": \"/web\", \"deployments\": []}"}) {
+            try {
+                trackDeployment("/web", false, rejected, 0);
+                fail("Should fail on response " + rejected);
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testIsSettled() {
+        assertTrue(isSettled("{\"app\": {\"id\": \"/web\", \"instances\": 2, \"tasksRunning\": 2, "
+                + "\"tasksHealthy\": 0, \"healthChecks\": [], \"deployments\": []}}"));
+        // superseded by another deployment
+        assertFalse(isSettled("{\"app\": {\"id\": \"/web\", \"instances\": 2, \"tasksRunning\": 2, "
+                + "\"deployments\": [{\"id\": \"d2\"}]}}"));
+        assertFalse(isSettled("{\"app\": {\"id\": \"/web\", \"instances\": 2, \"tasksRunning\": 1, "
+                + "\"deployments\": []}}"));
+        assertFalse(isSettled("{\"app\": {\"id\": \"/web\", \"instances\": 2, \"tasksRunning\": 2, "
+                + "\"tasksHealthy\": 1, \"healthChecks\": [{\"protocol\": \"HTTP\"}], \"deployments\": []}}"));
+        assertTrue(isSettled("{\"id\": \"/team\", \"apps\": [{\"id\": \"/team/web\", \"instances\": 1, "
+                + "\"tasksRunning\": 1, \"deployments\": []}]}"));
+        assertFalse(isSettled("{\"id\": \"/team\", \"apps\": [{\"id\": \"/team/web\", \"instances\": 1, "
+                + "\"tasksRunning\": 1, \"deployments\": []}, {\"id\": \"/team/worker\", \"instances\": 1, "
+                + "\"tasksRunning\": 0, \"deployments\": []}]}"));
+        assertFalse(isSettled("{\"message\": \"App '/web' does not exist\"}"));
+        assertFalse(isSettled("<html>502 Bad Gateway</html>"));
+    }
+
+    @Test
+    public void testRolloutSecondsVariable() {
+        assertEquals("MARATHON_ROLLOUT_SECONDS_WEB", rolloutSecondsVariable("/web"));
+        assertEquals("MARATHON_ROLLOUT_SECONDS_TEAM_WEB_1", rolloutSecondsVariable("/team/web-1"));
+        assertEquals("MARATHON_ROLLOUT_SECONDS_TEAM_V1_0", rolloutSecondsVariable("/team/v1.0/"));
+    }
+
+    @Test
+    public void testWaitForDeployments() throws Exception {
+        SSHClient client = mock(SSHClient.class);
+        when(client.execRemote("curl -sS --max-time 15 http://localhost/marathon/v2/deployments"))
+                .thenReturn("[{\"id\": \"d1\"}, {\"id\": \"d2\"}, {\"id\": \"other\"}]")
+                .thenReturn("[{\"id\": \"d2\"}]")
+                .thenReturn("[]");
+        when(client.execRemote("curl -sS --max-time 15 'http://localhost/marathon/v2/apps/web'"))
+                .thenReturn(SETTLED_APP);
+        when(client.execRemote("curl -sS --max-time 15 'http://localhost/marathon/v2/groups/team"
+                + "?embed=group.apps&embed=group.apps.counts&embed=group.apps.deployments'"))
+                .thenReturn("{\"id\": \"/team\", \"apps\": []}");
+        List<MarathonDeploymentCommand.PendingDeployment> deployments = Arrays.asList(
+                new MarathonDeploymentCommand.PendingDeployment("d1", "/web", false, System.nanoTime()),
+                new MarathonDeploymentCommand.PendingDeployment("d2", "/team", true, System.nanoTime()));
+        Map<String, Long> rolloutSeconds = new LinkedHashMap<>();
+
+        assertTrue(MarathonDeploymentCommand.waitForDeployments(client, deployments, 1, rolloutSeconds, System.out));
+        assertEquals(Arrays.asList("/web", "/team"), new ArrayList<>(rolloutSeconds.keySet()));
+        verify(client, times(3)).execRemote("curl -sS --max-time 15 http://localhost/marathon/v2/deployments");
+    }
+
+    @Test
+    public void testWaitForDeploymentsRetriesFailedPoll() throws Exception {
+        SSHClient client = mock(SSHClient.class);
+        when(client.execRemote("curl -sS --max-time 15 http://localhost/marathon/v2/deployments"))
+                .thenReturn("<html>503 Service Unavailable</html>")
+                .thenReturn("")
+                .thenReturn("[]");
+        when(client.execRemote("curl -sS --max-time 15 'http://localhost/marathon/v2/apps/web'"))
+                .thenReturn(SETTLED_APP);
+        Map<String, Long> rolloutSeconds = new LinkedHashMap<>();
+
+        assertTrue(MarathonDeploymentCommand.waitForDeployments(client,
+                Collections.singletonList(new MarathonDeploymentCommand.PendingDeployment("d1", "/web", false, 0)),
+                1, rolloutSeconds, System.out));
+        assertTrue(rolloutSeconds.containsKey("/web"));
+        verify(client, times(3)).execRemote("curl -sS --max-time 15 http://localhost/marathon/v2/deployments");
+    }
+
+    @Test
+    public void testWaitForSupersededDeployment() throws Exception {
+        SSHClient client = mock(SSHClient.class);
+        when(client.execRemote("curl -sS --max-time 15 http://localhost/marathon/v2/deployments"))
+                .thenReturn("[{\"id\": \"d2\"}]");
+        // d1 was superseded by d2, which is still rolling out the app
+        when(client.execRemote("curl -sS --max-time 15 'http://localhost/marathon/v2/apps/web'"))
+                .thenReturn("{\"app\": {\"id\": \"/web\", \"instances\": 1, \"tasksRunning\": 0, "
+                        + "\"deployments\": [{\"id\": \"d2\"}]}}")
+                .thenReturn(SETTLED_APP);
+        Map<String, Long> rolloutSeconds = new LinkedHashMap<>();
+
+        assertTrue(MarathonDeploymentCommand.waitForDeployments(client,
+                Collections.singletonList(new MarathonDeploymentCommand.PendingDeployment("d1", "/web", false, 0)),
+                1, rolloutSeconds, System.out));
+        assertTrue(rolloutSeconds.containsKey("/web"));
+        verify(client, times(2)).execRemote("curl -sS --max-time 15 'http://localhost/marathon/v2/apps/web'");
+    }
+
+    @Test
+    public void testWaitForDeploymentsTimeout() throws Exception {
+        SSHClient client = mock(SSHClient.class);
+        when(client.execRemote("curl -sS --max-time 1 http://localhost/marathon/v2/deployments"))
+                .thenReturn("[{\"id\": \"d1\"}]");
+        Map<String, Long> rolloutSeconds = new LinkedHashMap<>();
+
+        assertFalse(MarathonDeploymentCommand.waitForDeployments(client,
+                Collections.singletonList(new MarathonDeploymentCommand.PendingDeployment("d1", "/web", false, 0)),
+                0, rolloutSeconds, System.out));
+        assertTrue(rolloutSeconds.isEmpty());
+    }
+
+    @Test
+    public void testPollMaxTimeSeconds() {
+        final long now = System.nanoTime();
+        assertEquals(15, pollMaxTimeSeconds(now + TimeUnit.MINUTES.toNanos(5)));
+        assertEquals(3, pollMaxTimeSeconds(now + TimeUnit.MILLISECONDS.toNanos(2500)));
+        assertEquals(1, pollMaxTimeSeconds(now - TimeUnit.SECONDS.toNanos(1)));
+    }
+
     @Test
     public void testNameForBuild() {
         assertEquals("acs-plugin-dcos-abcdef", nameForBuild(jobContext("abc", "def")));
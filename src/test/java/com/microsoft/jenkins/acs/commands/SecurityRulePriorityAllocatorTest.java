@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.acs.commands;
+
+import com.microsoft.azure.management.network.NetworkSecurityRule;
+import com.microsoft.azure.management.network.SecurityRuleAccess;
+import com.microsoft.azure.management.network.SecurityRuleDirection;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link SecurityRulePriorityAllocator}.
+ */
+public class SecurityRulePriorityAllocatorTest {
+    private static NetworkSecurityRule mockRule(int priority, SecurityRuleAccess access,
+                                                SecurityRuleDirection direction) {
+        final NetworkSecurityRule rule = mock(NetworkSecurityRule.class);
+        when(rule.priority()).thenReturn(priority);
+        when(rule.access()).thenReturn(access);
+        when(rule.direction()).thenReturn(direction);
+        return rule;
+    }
+
+    @Test
+    public void testStepAfterMaxPriority() throws Exception {
+        SecurityRulePriorityAllocator allocator = new SecurityRulePriorityAllocator(Arrays.asList(
+                mockRule(100, SecurityRuleAccess.ALLOW, SecurityRuleDirection.INBOUND),
+                mockRule(200, SecurityRuleAccess.ALLOW, SecurityRuleDirection.OUTBOUND)), 200);
+        assertEquals(210, allocator.next());
+        assertEquals(220, allocator.next());
+    }
+
+    @Test
+    public void testNoRules() throws Exception {
+        SecurityRulePriorityAllocator allocator = new SecurityRulePriorityAllocator(
+                Collections.<NetworkSecurityRule>emptyList(), Integer.MIN_VALUE);
+        assertEquals(100, allocator.next());
+        assertEquals(110, allocator.next());
+    }
+
+    @Test
+    public void testFillGapsAfterDenyRules() throws Exception {
+        List<NetworkSecurityRule> rules = new ArrayList<>();
+        rules.add(mockRule(100, SecurityRuleAccess.ALLOW, SecurityRuleDirection.INBOUND));
+        rules.add(mockRule(101, SecurityRuleAccess.ALLOW, SecurityRuleDirection.INBOUND));
+        rules.add(mockRule(150, SecurityRuleAccess.DENY, SecurityRuleDirection.INBOUND));
+        rules.add(mockRule(151, SecurityRuleAccess.ALLOW, SecurityRuleDirection.INBOUND));
+        rules.add(mockRule(4090, SecurityRuleAccess.ALLOW, SecurityRuleDirection.INBOUND));
+
+        SecurityRulePriorityAllocator allocator = new SecurityRulePriorityAllocator(rules, 4090);
+        assertEquals(152, allocator.next());
+        assertEquals(153, allocator.next());
+    }
+
+    @Test
+    public void testExhausted() {
+        List<NetworkSecurityRule> rules = new ArrayList<>();
+        rules.add(mockRule(4095, SecurityRuleAccess.DENY, SecurityRuleDirection.INBOUND));
+        rules.add(mockRule(4096, SecurityRuleAccess.ALLOW, SecurityRuleDirection.INBOUND));
+
+        SecurityRulePriorityAllocator allocator = new SecurityRulePriorityAllocator(rules, 4096);
+        try {
+            allocator.next();
+            fail("Should throw InvalidConfigException");
+        } catch (EnablePortCommand.InvalidConfigException e) {
+            // Should throw
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.acs.orchestrators;
+
+import com.microsoft.azure.management.network.LoadDistribution;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests for the {@link LoadBalancerSettings}.
+ */
+public class LoadBalancerSettingsTest {
+    @Test
+    public void fromLabels() throws DeploymentConfig.InvalidFormatException {
+        final Map<String, String> labels = new HashMap<>();
+        labels.put("com.microsoft.azure.acs.lb.idleTimeout", "15");
+        labels.put("com.microsoft.azure.acs.lb.loadDistribution", "sourceip");
+        labels.put("com.microsoft.azure.acs.lb.8080.probePath", "/health");
+        labels.put("com.microsoft.azure.acs.lb.8080.idleTimeout", "30");
+        labels.put("other", "value");
+
+        final LoadBalancerSettings settings = LoadBalancerSettings.fromLabels(labels, 8080);
+        Assert.assertEquals(Integer.valueOf(30), settings.getIdleTimeoutMinutes());
+        Assert.assertEquals(LoadDistribution.SOURCE_IP, settings.getLoadDistribution());
+        Assert.assertNull(settings.getFloatingIp());
+        Assert.assertEquals("/health", settings.getProbePath());
+        Assert.assertTrue(settings.hasProbeSettings());
+
+        final LoadBalancerSettings others = LoadBalancerSettings.fromLabels(labels, 9090);
+        Assert.assertEquals(new LoadBalancerSettings(15, LoadDistribution.SOURCE_IP, null, null, null, null), others);
+        Assert.assertFalse(others.hasProbeSettings());
+
+        Assert.assertSame(LoadBalancerSettings.DEFAULT,
+                LoadBalancerSettings.fromLabels(Collections.singletonMap("other", "value"), 8080));
+        Assert.assertEquals("", LoadBalancerSettings.DEFAULT.toString());
+    }
+
+    @Test
+    public void fromLabelsInvalid() {
+        final String[][] invalid = new String[][]{
+                {"idleTimeout", "3"},
+                {"idleTimeout", "abc"},
+                {"loadDistribution", "RoundRobin"},
+                {"floatingIp", "yes"},
+                {"probePath", "health"},
+                {"probeInterval", "1"},
+                {"probeCount", "0"},
+        };
+        for (String[] label : invalid) {
+            try {
+                LoadBalancerSettings.fromLabels(
+                        Collections.singletonMap(LoadBalancerSettings.LABEL_PREFIX + label[0], label[1]), 80);
+                Assert.fail("Should throw InvalidFormatException for " + label[0] + "=" + label[1]);
+            } catch (DeploymentConfig.InvalidFormatException e) {
+                // Expected
+            }
+        }
+    }
+}
@@ -81,4 +81,23 @@ public class MarathonDeploymentConfigTest {
         );
         assertServicePorts(contents, expServicePorts);
     }
+
+    @Test
+    public void getServicePortsWithLoadBalancerLabels()
+            throws InterruptedException, DeploymentConfig.InvalidFormatException, IOException {
+        String[] contents = new String[]{
+                "{\"labels\": {\"com.microsoft.azure.acs.lb.idleTimeout\": \"15\"}, "
+                        + "\"container\": {\"docker\":{\"portMappings\": ["
+                        + "{\"hostPort\": 8080, \"containerPort\": 80, "
+                        + "\"labels\": {\"com.microsoft.azure.acs.lb.probePath\": \"/health\"}}, "
+                        + "{\"hostPort\": 8081, \"containerPort\": 8081}]}}}",
+        };
+        final List<ServicePort> expServicePorts = Arrays.asList(
+                new ServicePort(8080, 80, Protocol.TCP,
+                        new LoadBalancerSettings(15, null, null, "/health", null, null)),
+                new ServicePort(8081, 8081, Protocol.TCP,
+                        new LoadBalancerSettings(15, null, null, null, null, null))
+        );
+        assertServicePorts(contents, expServicePorts);
+    }
 }
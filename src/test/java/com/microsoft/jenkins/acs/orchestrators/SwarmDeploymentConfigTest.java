@@ -112,4 +112,74 @@ public class SwarmDeploymentConfigTest {
         assertServicePorts(config, expServicePorts);
     }
 
+    @Test
+    public void getServicePortRanges() throws IOException, DeploymentConfig.InvalidFormatException, InterruptedException {
+        final String config = ""
+                + "nginx:\n"
+                + "  image: nginx\n"
+                + "  ports:\n"
+                + "    - \"9090:80\"\n"
+                + "    - \"30000-32000:30000-32000\"\n"
+                + "    - \"8084-8085:18084-18085/udp\"\n";
+        final File file = File.createTempFile("tst-acs-", ".yml");
+        file.deleteOnExit();
+        FileUtils.write(file, config, "UTF-8");
+
+        SwarmDeploymentConfig deploymentConfig = new SwarmDeploymentConfig(new FilePath[]{new FilePath(file)});
+        final List<ServicePortRange> expRanges = Arrays.asList(
+                new ServicePortRange(9090, 9090, 80, Protocol.TCP),
+                new ServicePortRange(30000, 32000, 30000, Protocol.TCP),
+                new ServicePortRange(8084, 8085, 18084, Constants.UDP)
+        );
+        Assert.assertEquals(expRanges, deploymentConfig.getServicePortRanges());
+        Assert.assertEquals(2004, deploymentConfig.getServicePorts().size());
+    }
+
+    @Test
+    public void getServicePortsWithLoadBalancerLabels()
+            throws IOException, DeploymentConfig.InvalidFormatException, InterruptedException {
+        final String config = ""
+                + "tomcat:\n"
+                + "  image: tomcat\n"
+                + "  labels:\n"
+                + "    - \"com.microsoft.azure.acs.lb.idleTimeout=10\"\n"
+                + "  deploy:\n"
+                + "    labels:\n"
+                + "      com.microsoft.azure.acs.lb.idleTimeout: \"20\"\n"
+                + "      com.microsoft.azure.acs.lb.8081.floatingIp: \"true\"\n"
+                + "  ports:\n"
+                + "    - \"8080\"\n"
+                + "    - target: 8081\n"
+                + "      published: 8081\n";
+        final List<ServicePort> expServicePorts = Arrays.asList(
+                new ServicePort(8080, 8080, Protocol.TCP,
+                        new LoadBalancerSettings(20, null, null, null, null, null)),
+                new ServicePort(8081, 8081, Protocol.TCP,
+                        new LoadBalancerSettings(20, null, true, null, null, null))
+        );
+        assertServicePorts(config, expServicePorts);
+    }
+
+    @Test
+    public void getServicePortsWithLoadBalancerLabelsInRange()
+            throws IOException, DeploymentConfig.InvalidFormatException, InterruptedException {
+        final String config = ""
+                + "tomcat:\n"
+                + "  image: tomcat\n"
+                + "  labels:\n"
+                + "    - \"com.microsoft.azure.acs.lb.idleTimeout=10\"\n"
+                + "    - \"com.microsoft.azure.acs.lb.8081.probePath=/health\"\n"
+                + "    - \"com.microsoft.azure.acs.lb.9000.floatingIp=true\"\n"
+                + "  ports:\n"
+                + "    - \"8080-8082\"\n";
+        final List<ServicePort> expServicePorts = Arrays.asList(
+                new ServicePort(8080, 8080, Protocol.TCP,
+                        new LoadBalancerSettings(10, null, null, null, null, null)),
+                new ServicePort(8081, 8081, Protocol.TCP,
+                        new LoadBalancerSettings(10, null, null, "/health", null, null)),
+                new ServicePort(8082, 8082, Protocol.TCP,
+                        new LoadBalancerSettings(10, null, null, null, null, null))
+        );
+        assertServicePorts(config, expServicePorts);
+    }
 }
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.acs.util;
+
+import com.google.common.base.Ticker;
+import com.microsoft.azure.management.Azure;
+import com.microsoft.jenkins.azurecommons.core.credentials.TokenCredentialData;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests for the {@link AzureClientCache}.
+ */
+public class AzureClientCacheTest {
+    private static final int EXPIRE_AFTER_ACCESS_MINUTES = 30;
+    private static final int TIME_TO_LIVE_MINUTES = 240;
+    private static final int USE_INTERVAL_MINUTES = 20;
+
+    private final AtomicInteger builds = new AtomicInteger();
+
+    private final List<Azure> built = new ArrayList<>();
+
+    private final Callable<Azure> builder = new Callable<Azure>() {
+        @Override
+        public Azure call() {
+            builds.incrementAndGet();
+            Azure client = mock(Azure.class);
+            built.add(client);
+            return client;
+        }
+    };
+
+    private final FakeTicker ticker = new FakeTicker();
+
+    @Before
+    public void setup() {
+        AzureClientCache.setTicker(ticker);
+        AzureClientCache.invalidateAll();
+    }
+
+    @After
+    public void tearDown() {
+        AzureClientCache.invalidateAll();
+        AzureClientCache.setTicker(Ticker.systemTicker());
+    }
+
+    @Test
+    public void testReuseForSameCredential() {
+        Azure first = AzureClientCache.get("cred", token("secret"), AzureTransportSettings.DEFAULT, builder);
+        Azure second = AzureClientCache.get("cred", token("secret"), AzureTransportSettings.DEFAULT, builder);
+        assertSame(first, second);
+        assertEquals(1, builds.get());
+    }
+
+    @Test
+    public void testRotatedCredentialGetsNewClient() {
+        Azure first = AzureClientCache.get("cred", token("secret"), AzureTransportSettings.DEFAULT, builder);
+        Azure rotated = AzureClientCache.get("cred", token("rotated"), AzureTransportSettings.DEFAULT, builder);
+        assertNotSame(first, rotated);
+        assertEquals(2, builds.get());
+
+        // A credential with another ID never shares the client, even with the same data
+        AzureClientCache.get("other", token("secret"), AzureTransportSettings.DEFAULT, builder);
+        assertEquals(3, builds.get());
+    }
+
+    @Test
+    public void testTransportChangeGetsNewClient() {
+        Azure first = AzureClientCache.get("cred", token("secret"), AzureTransportSettings.DEFAULT, builder);
+        Azure tuned = AzureClientCache.get("cred", token("secret"), new AzureTransportSettings(10, 30, 5), builder);
+        assertNotSame(first, tuned);
+        assertSame(tuned, AzureClientCache.get("cred", token("secret"), new AzureTransportSettings(10, 30, 5), builder));
+        // null settings are the same as the defaults
+        assertSame(first, AzureClientCache.get("cred", token("secret"), null, builder));
+        assertEquals(2, builds.get());
+    }
+
+    @Test
+    public void testRefreshExpiring() {
+        Azure first = AzureClientCache.get("cred", token("secret"), AzureTransportSettings.DEFAULT, builder);
+
+        // the token is still fresh
+        ticker.advance(30, TimeUnit.MINUTES);
+        AzureClientCache.get("cred", token("secret"), AzureTransportSettings.DEFAULT, builder);
+        AzureClientCache.refreshExpiring();
+        assertEquals(1, builds.get());
+
+        ticker.advance(20, TimeUnit.MINUTES);
+        AzureClientCache.refreshExpiring();
+        assertEquals(2, builds.get());
+        Azure refreshed = AzureClientCache.get("cred", token("secret"), AzureTransportSettings.DEFAULT, builder);
+        assertNotSame(first, refreshed);
+        assertSame(built.get(1), refreshed);
+        verify(refreshed).getCurrentSubscription();
+        assertEquals(2, builds.get());
+    }
+
+    @Test
+    public void testRefreshFailureKeepsClient() {
+        final AtomicInteger attempts = new AtomicInteger();
+        final Callable<Azure> failingRebuild = new Callable<Azure>() {
+            @Override
+            public Azure call() throws Exception {
+                if (attempts.incrementAndGet() > 1) {
+                    throw new IllegalStateException("AAD is unavailable");
+                }
+                return builder.call();
+            }
+        };
+        Azure first = AzureClientCache.get("cred", token("secret"), AzureTransportSettings.DEFAULT, failingRebuild);
+        ticker.advance(29, TimeUnit.MINUTES);
+        AzureClientCache.get("cred", token("secret"), AzureTransportSettings.DEFAULT, failingRebuild);
+        ticker.advance(20, TimeUnit.MINUTES);
+
+        AzureClientCache.refreshExpiring();
+        assertEquals(2, attempts.get());
+        assertSame(first, AzureClientCache.get("cred", token("secret"), AzureTransportSettings.DEFAULT, builder));
+    }
+
+    @Test
+    public void testRefreshSkipsIdleClients() {
+        AzureClientCache.get("cred", token("secret"), AzureTransportSettings.DEFAULT, builder);
+        ticker.advance(29, TimeUnit.MINUTES);
+        AzureClientCache.get("cred", token("secret"), AzureTransportSettings.DEFAULT, builder);
+
+        ticker.advance(EXPIRE_AFTER_ACCESS_MINUTES + 1, TimeUnit.MINUTES);
+        AzureClientCache.refreshExpiring();
+        assertEquals(1, builds.get());
+    }
+
+    @Test
+    public void testRefreshKeepsTimeToLive() {
+        AzureClientCache.get("cred", token("secret"), AzureTransportSettings.DEFAULT, builder);
+        // a busy client refreshed in the background every hour, until just before the time to live
+        for (int minutes = USE_INTERVAL_MINUTES; minutes < TIME_TO_LIVE_MINUTES; minutes += USE_INTERVAL_MINUTES) {
+            ticker.advance(USE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+            AzureClientCache.get("cred", token("secret"), AzureTransportSettings.DEFAULT, builder);
+            AzureClientCache.refreshExpiring();
+        }
+        assertEquals(4, builds.get());
+        Azure last = built.get(built.size() - 1);
+
+        ticker.advance(USE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+        Azure client = AzureClientCache.get("cred", token("secret"), AzureTransportSettings.DEFAULT, builder);
+        assertNotSame(last, client);
+        assertEquals(5, builds.get());
+
+        // the rebuilt entry starts a new time to live, and is not refreshed before its token is about to expire
+        AzureClientCache.refreshExpiring();
+        assertEquals(5, builds.get());
+    }
+
+    @Test
+    public void testRefreshDropsExpiredClients() {
+        AzureClientCache.get("cred", token("secret"), AzureTransportSettings.DEFAULT, builder);
+        for (int minutes = USE_INTERVAL_MINUTES; minutes < TIME_TO_LIVE_MINUTES; minutes += USE_INTERVAL_MINUTES) {
+            ticker.advance(USE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+            AzureClientCache.get("cred", token("secret"), AzureTransportSettings.DEFAULT, builder);
+            AzureClientCache.refreshExpiring();
+        }
+        assertEquals(4, builds.get());
+
+        // reached the time to live, the entry is dropped rather than rebuilt in the background
+        ticker.advance(USE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+        AzureClientCache.refreshExpiring();
+        assertEquals(4, builds.get());
+        AzureClientCache.get("cred", token("secret"), AzureTransportSettings.DEFAULT, builder);
+        assertEquals(5, builds.get());
+    }
+
+    @Test
+    public void testFingerprint() {
+        assertEquals(AzureClientCache.fingerprint(token("secret")), AzureClientCache.fingerprint(token("secret")));
+        assertNotEquals(AzureClientCache.fingerprint(token("secret")), AzureClientCache.fingerprint(token("rotated")));
+    }
+
+    static TokenCredentialData token(String secret) {
+        TokenCredentialData token = new TokenCredentialData();
+        token.setAzureEnvironmentName("Azure");
+        token.setSubscriptionId("subscription");
+        token.setClientId("client");
+        token.setClientSecret(secret);
+        token.setTenant("tenant");
+        return token;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.acs.util;
+
+import com.microsoft.jenkins.azurecommons.core.credentials.TokenCredentialData;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.microsoft.jenkins.acs.util.AzureClientCacheTest.token;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the {@link AzureInventoryCache}.
+ */
+public class AzureInventoryCacheTest {
+    private static final long WAIT_SECONDS = 10;
+    private static final long POLL_MILLIS = 10;
+
+    private final FakeTicker ticker = new FakeTicker();
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    // the listings returned by the successive loads, or the exception to throw
+    private final BlockingQueue<Object> listings = new LinkedBlockingQueue<>();
+
+    private volatile CountDownLatch reloadGate = new CountDownLatch(0);
+
+    @Before
+    public void setup() {
+        AzureInventoryCache.setLister(new AzureInventoryCache.Lister() {
+            @Override
+            public List<String> list(String credentialId, TokenCredentialData token, String resourceGroupName)
+                    throws Exception {
+                if (loads.getAndIncrement() > 0) {
+                    reloadGate.await();
+                }
+                Object listing = listings.remove();
+                if (listing instanceof Exception) {
+                    throw (Exception) listing;
+                }
+                @SuppressWarnings("unchecked")
+                List<String> names = (List<String>) listing;
+                return names;
+            }
+        }, ticker);
+    }
+
+    @After
+    public void tearDown() {
+        reloadGate.countDown();
+        AzureInventoryCache.setLister(null, null);
+    }
+
+    @Test
+    public void testKeySeparation() {
+        listings.add(Arrays.asList("group"));
+        listings.add(Arrays.asList("acs | DCOS"));
+        listings.add(Arrays.asList("rotated"));
+        assertEquals(Arrays.asList("group"), AzureInventoryCache.getResourceGroups("cred", token("secret")));
+        assertEquals(Arrays.asList("acs | DCOS"),
+                AzureInventoryCache.getContainerServices("cred", token("secret"), "group"));
+        // resource group names are case insensitive
+        assertEquals(Arrays.asList("acs | DCOS"),
+                AzureInventoryCache.getContainerServices("cred", token("secret"), "GROUP"));
+        assertEquals(Arrays.asList("group"), AzureInventoryCache.getResourceGroups("cred", token("secret")));
+        assertEquals(2, loads.get());
+
+        // rotated credential never reuses the listing of the stale one
+        assertEquals(Arrays.asList("rotated"), AzureInventoryCache.getResourceGroups("cred", token("rotated")));
+        assertEquals(3, loads.get());
+    }
+
+    @Test
+    public void testServeStaleWhileReloading() throws Exception {
+        listings.add(Arrays.asList("old"));
+        assertEquals(Arrays.asList("old"), AzureInventoryCache.getResourceGroups("cred", token("secret")));
+
+        ticker.advance(1, TimeUnit.MINUTES);
+        assertEquals(Arrays.asList("old"), AzureInventoryCache.getResourceGroups("cred", token("secret")));
+        assertEquals(1, loads.get());
+
+        // the reload is blocked, the previous listing is served meanwhile
+        reloadGate = new CountDownLatch(1);
+        listings.add(Arrays.asList("new"));
+        ticker.advance(2, TimeUnit.MINUTES);
+        assertEquals(Arrays.asList("old"), AzureInventoryCache.getResourceGroups("cred", token("secret")));
+        assertEquals(Arrays.asList("old"), AzureInventoryCache.getResourceGroups("cred", token("secret")));
+
+        reloadGate.countDown();
+        assertTrue(awaitListing(Arrays.asList("new")));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testKeepListingOnReloadFailure() throws Exception {
+        listings.add(Arrays.asList("old"));
+        assertEquals(Arrays.asList("old"), AzureInventoryCache.getResourceGroups("cred", token("secret")));
+
+        listings.add(new IllegalStateException("throttled"));
+        ticker.advance(3, TimeUnit.MINUTES);
+        assertEquals(Arrays.asList("old"), AzureInventoryCache.getResourceGroups("cred", token("secret")));
+        waitForLoads(2);
+
+        // the previous listing is kept and the next access retries the reload
+        reloadGate = new CountDownLatch(1);
+        listings.add(Arrays.asList("new"));
+        assertEquals(Arrays.asList("old"), AzureInventoryCache.getResourceGroups("cred", token("secret")));
+        reloadGate.countDown();
+        assertTrue(awaitListing(Arrays.asList("new")));
+        assertEquals(3, loads.get());
+    }
+
+    private boolean awaitListing(List<String> expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(WAIT_SECONDS);
+        while (System.nanoTime() < deadline) {
+            if (expected.equals(AzureInventoryCache.getResourceGroups("cred", token("secret")))) {
+                return true;
+            }
+            Thread.sleep(POLL_MILLIS);
+        }
+        return false;
+    }
+
+    private void waitForLoads(int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(WAIT_SECONDS);
+        while (loads.get() < expected || !listings.isEmpty()) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(POLL_MILLIS);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.acs.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the {@link AzureTokenRefresher}.
+ */
+public class AzureTokenRefresherTest {
+    @Test
+    public void testEnsureStartedOnce() {
+        AzureTokenRefresher.ensureStarted();
+        AzureTokenRefresher.ensureStarted();
+
+        int threads = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("azure-acs-token-refresher-")) {
+                // never keeps the JVM alive
+                assertTrue(thread.isDaemon());
+                ++threads;
+            }
+        }
+        assertEquals(1, threads);
+    }
+}
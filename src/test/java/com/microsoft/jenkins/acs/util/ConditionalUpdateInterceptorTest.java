@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.acs.util;
+
+import com.microsoft.azure.management.resources.fluentcore.model.Appliable;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link ConditionalUpdateInterceptor}.
+ */
+public class ConditionalUpdateInterceptorTest {
+    private static final String NSG_ID = "/subscriptions/sub/resourceGroups/rg/providers/Microsoft.Network/"
+            + "networkSecurityGroups/dcos-agent-public-nsg-xxx";
+    private static final String NSG_URL = "https://management.azure.com" + NSG_ID.toLowerCase()
+            + "?api-version=2018-04-01";
+
+    private static Request put(String url) {
+        return new Request.Builder().url(url).put(RequestBody.create(null, "{}")).build();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Appliable<String> update(Answer<String> answer) {
+        final Appliable<String> update = mock(Appliable.class);
+        when(update.apply()).thenAnswer(answer);
+        return update;
+    }
+
+    @Test
+    public void testApplyIfMatch() {
+        final String result = ConditionalUpdateInterceptor.applyIfMatch(NSG_ID, "etag-1", update(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) {
+                assertEquals("etag-1", ConditionalUpdateInterceptor.expectedEtag(put(NSG_URL)));
+                // The polling of the long running operation and the other resources are left alone
+                assertNull(ConditionalUpdateInterceptor.expectedEtag(new Request.Builder().url(NSG_URL).build()));
+                assertNull(ConditionalUpdateInterceptor.expectedEtag(
+                        put("https://management.azure.com" + NSG_ID + "-2?api-version=2018-04-01")));
+                return "updated";
+            }
+        }));
+
+        assertEquals("updated", result);
+        assertNull(ConditionalUpdateInterceptor.expectedEtag(put(NSG_URL)));
+    }
+
+    @Test
+    public void testApplyWithoutEtag() {
+        ConditionalUpdateInterceptor.applyIfMatch(NSG_ID, null, update(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) {
+                assertNull(ConditionalUpdateInterceptor.expectedEtag(put(NSG_URL)));
+                return null;
+            }
+        }));
+    }
+}
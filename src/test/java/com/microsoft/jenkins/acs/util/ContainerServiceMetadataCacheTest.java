@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.acs.util;
+
+import hudson.XmlFile;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the {@link ContainerServiceMetadataCache}.
+ */
+public class ContainerServiceMetadataCacheTest {
+    private static final String SUBSCRIPTION_ID = "subscription";
+    private static final String RESOURCE_GROUP_NAME = "resource-group";
+    private static final String CONTAINER_SERVICE_NAME = "container-service";
+    private static final int TTL_MINUTES = 60;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File path;
+    private ContainerServiceMetadataCache cache;
+
+    @Before
+    public void setup() throws IOException {
+        path = new File(folder.newFolder(), "metadata.xml");
+        cache = ContainerServiceMetadataCache.load(new XmlFile(path));
+    }
+
+    @Test
+    public void testLookup() {
+        assertNull(cache.lookup(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, CONTAINER_SERVICE_NAME, TTL_MINUTES));
+
+        cache.put(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, CONTAINER_SERVICE_NAME,
+                metadata(System.currentTimeMillis()));
+        ContainerServiceMetadata metadata =
+                cache.lookup(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, CONTAINER_SERVICE_NAME, TTL_MINUTES);
+        assertNotNull(metadata);
+        assertEquals("DCOS", metadata.getOrchestratorType());
+        assertEquals("fqdn.test", metadata.getMasterFqdn());
+        assertEquals("azureuser", metadata.getAdminUsername());
+
+        // the names are case insensitive
+        assertNotNull(cache.lookup(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME.toUpperCase(),
+                CONTAINER_SERVICE_NAME.toUpperCase(), TTL_MINUTES));
+        assertNull(cache.lookup(SUBSCRIPTION_ID, "other", CONTAINER_SERVICE_NAME, TTL_MINUTES));
+        assertNull(cache.lookup("other", RESOURCE_GROUP_NAME, CONTAINER_SERVICE_NAME, TTL_MINUTES));
+
+        // non-positive time to live disables the cache
+        assertNull(cache.lookup(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, CONTAINER_SERVICE_NAME, 0));
+    }
+
+    @Test
+    public void testLookupExpired() {
+        long fetchedAt = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(TTL_MINUTES + 1);
+        cache.put(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, CONTAINER_SERVICE_NAME, metadata(fetchedAt));
+        assertNull(cache.lookup(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, CONTAINER_SERVICE_NAME, TTL_MINUTES));
+        assertNotNull(cache.lookup(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, CONTAINER_SERVICE_NAME, TTL_MINUTES + 2));
+
+        // peek ignores the time to live
+        ContainerServiceMetadata metadata = cache.peek(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, CONTAINER_SERVICE_NAME);
+        assertNotNull(metadata);
+        assertEquals(fetchedAt, metadata.getFetchedAt());
+    }
+
+    @Test
+    public void testReturnsCopies() {
+        ContainerServiceMetadata put = metadata(System.currentTimeMillis());
+        cache.put(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, CONTAINER_SERVICE_NAME, put);
+        put.setMasterFqdn("changed.test");
+
+        ContainerServiceMetadata peeked = cache.peek(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, CONTAINER_SERVICE_NAME);
+        assertEquals("fqdn.test", peeked.getMasterFqdn());
+        peeked.setOrchestratorType("Kubernetes");
+        assertEquals("DCOS", cache.lookup(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, CONTAINER_SERVICE_NAME, TTL_MINUTES)
+                .getOrchestratorType());
+    }
+
+    @Test
+    public void testPersistence() {
+        assertFalse(path.exists());
+        cache.put(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, CONTAINER_SERVICE_NAME, metadata(System.currentTimeMillis()));
+        assertTrue(path.exists());
+
+        ContainerServiceMetadataCache reloaded = ContainerServiceMetadataCache.load(new XmlFile(path));
+        ContainerServiceMetadata metadata =
+                reloaded.lookup(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, CONTAINER_SERVICE_NAME, TTL_MINUTES);
+        assertNotNull(metadata);
+        assertEquals("fqdn.test", metadata.getMasterFqdn());
+
+        reloaded.invalidate(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, CONTAINER_SERVICE_NAME);
+        assertNull(reloaded.lookup(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, CONTAINER_SERVICE_NAME, TTL_MINUTES));
+        assertNull(ContainerServiceMetadataCache.load(new XmlFile(path))
+                .lookup(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, CONTAINER_SERVICE_NAME, TTL_MINUTES));
+    }
+
+    @Test
+    public void testInvalidateKeepsNetworkState() {
+        ContainerServiceMetadata metadata = metadata(System.currentTimeMillis());
+        metadata.setSecurityGroupId("nsg-id");
+        metadata.setSecurityGroupEtag("nsg-etag");
+        metadata.setLoadBalancerId("lb-id");
+        metadata.setLoadBalancerEtag("lb-etag");
+        metadata.setAppliedPortsDigest("digest");
+        cache.put(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, CONTAINER_SERVICE_NAME, metadata);
+
+        cache.invalidate(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, CONTAINER_SERVICE_NAME);
+        assertNull(cache.lookup(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, CONTAINER_SERVICE_NAME, TTL_MINUTES));
+        ContainerServiceMetadata peeked = cache.peek(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, CONTAINER_SERVICE_NAME);
+        assertNull(peeked.getMasterFqdn());
+        assertEquals("nsg-id", peeked.getSecurityGroupId());
+        assertEquals("nsg-etag", peeked.getSecurityGroupEtag());
+        assertEquals("lb-id", peeked.getLoadBalancerId());
+        assertEquals("lb-etag", peeked.getLoadBalancerEtag());
+        assertEquals("digest", peeked.getAppliedPortsDigest());
+    }
+
+    @Test
+    public void testUpdateNetworkState() {
+        ContainerServiceMetadata stale = metadata(System.currentTimeMillis());
+        cache.put(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, CONTAINER_SERVICE_NAME, stale);
+        // Invalidated by a failed deployment while the ports were updated from the stale copy
+        cache.invalidate(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, CONTAINER_SERVICE_NAME);
+
+        ContainerServiceMetadata networkState = new ContainerServiceMetadata(stale);
+        networkState.setSecurityGroupId("nsg-id");
+        networkState.setLoadBalancerEtag("lb-etag");
+        networkState.setAppliedPortsDigest("digest");
+        cache.updateNetworkState(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, CONTAINER_SERVICE_NAME, networkState);
+
+        assertNull(cache.lookup(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, CONTAINER_SERVICE_NAME, TTL_MINUTES));
+        ContainerServiceMetadata peeked = cache.peek(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, CONTAINER_SERVICE_NAME);
+        assertNull(peeked.getMasterFqdn());
+        assertEquals("nsg-id", peeked.getSecurityGroupId());
+        assertEquals("lb-etag", peeked.getLoadBalancerEtag());
+        assertEquals("digest", peeked.getAppliedPortsDigest());
+
+        // Creates the entry if absent
+        cache.updateNetworkState(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, "other", networkState);
+        assertEquals("nsg-id", cache.peek(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, "other").getSecurityGroupId());
+    }
+
+    @Test
+    public void testPruneIdleEntries() {
+        long now = System.currentTimeMillis();
+        cache.put(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, "idle", metadata(now),
+                now - TimeUnit.DAYS.toMillis(ContainerServiceMetadataCache.MAX_IDLE_DAYS + 1));
+        assertNotNull(cache.peek(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, "idle"));
+
+        cache.put(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, CONTAINER_SERVICE_NAME, metadata(now), now);
+        assertNull(cache.peek(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, "idle"));
+        assertNotNull(cache.peek(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, CONTAINER_SERVICE_NAME));
+    }
+
+    @Test
+    public void testPruneLeastRecentlyRecorded() {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i <= ContainerServiceMetadataCache.MAX_ENTRIES; ++i) {
+            cache.put(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, "cs-" + i, metadata(now), now + i);
+        }
+        assertNull(cache.peek(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, "cs-0"));
+        assertNotNull(cache.peek(SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, "cs-1"));
+        assertNotNull(cache.peek(
+                SUBSCRIPTION_ID, RESOURCE_GROUP_NAME, "cs-" + ContainerServiceMetadataCache.MAX_ENTRIES));
+    }
+
+    private static ContainerServiceMetadata metadata(long fetchedAt) {
+        ContainerServiceMetadata metadata = new ContainerServiceMetadata();
+        metadata.setOrchestratorType("DCOS");
+        metadata.setMasterFqdn("fqdn.test");
+        metadata.setAdminUsername("azureuser");
+        metadata.setFetchedAt(fetchedAt);
+        return metadata;
+    }
+}
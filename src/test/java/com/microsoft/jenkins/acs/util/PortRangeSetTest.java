@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.acs.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the {@link PortRangeSet}.
+ */
+public class PortRangeSetTest {
+    @Test
+    public void testParse() {
+        assertEquals("80,8000-9000", PortRangeSet.parse(Arrays.asList("8000-8500", "80", "8501-9000")).toString());
+        assertEquals("80-82", PortRangeSet.parse("82,80 , 81").toString());
+        assertTrue(PortRangeSet.parse("*").isAll());
+        assertTrue(PortRangeSet.parse(Arrays.asList("", null)).isEmpty());
+
+        for (String invalid : new String[]{"abc", "80-xx", "90-80", "65536"}) {
+            try {
+                PortRangeSet.parse(invalid);
+                fail("Should throw IllegalArgumentException for " + invalid);
+            } catch (IllegalArgumentException e) {
+                // Should throw
+            }
+        }
+    }
+
+    @Test
+    public void testContains() {
+        PortRangeSet set = PortRangeSet.parse("80,8000-9000");
+        assertTrue(set.contains(80));
+        assertTrue(set.contains(8000));
+        assertTrue(set.contains(8500));
+        assertTrue(set.contains(9000));
+        assertFalse(set.contains(79));
+        assertFalse(set.contains(81));
+        assertFalse(set.contains(9001));
+        assertEquals(1002, set.size());
+    }
+
+    @Test
+    public void testSetOperations() {
+        PortRangeSet set = PortRangeSet.parse("80,8000-9000");
+        PortRangeSet other = PortRangeSet.parse("70-80,8500-8600,8900-9100");
+
+        assertEquals("80,8500-8600,8900-9000", set.intersect(other).toString());
+        assertEquals("8000-8499,8601-8899", set.minus(other).toString());
+        assertEquals("70-80,8000-9100", set.union(other).toString());
+        assertEquals(PortRangeSet.EMPTY, set.minus(PortRangeSet.ALL));
+        assertEquals(set, set.intersect(PortRangeSet.ALL));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.acs.util;
+
+import com.cloudbees.jenkins.plugins.sshcredentials.SSHUserPrivateKey;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.google.common.base.Supplier;
+import hudson.model.Saveable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link SshCredentialsIndex}.
+ */
+public class SshCredentialsIndexTest {
+    private final List<SSHUserPrivateKey> stored = new ArrayList<>();
+
+    private final AtomicInteger lookups = new AtomicInteger();
+
+    private final FakeTicker ticker = new FakeTicker();
+
+    @Before
+    public void setup() {
+        SshCredentialsIndex.setLoader(new Supplier<List<? extends SSHUserPrivateKey>>() {
+            @Override
+            public List<? extends SSHUserPrivateKey> get() {
+                lookups.incrementAndGet();
+                return new ArrayList<>(stored);
+            }
+        }, ticker);
+    }
+
+    @After
+    public void tearDown() {
+        SshCredentialsIndex.setLoader(null, null);
+    }
+
+    @Test
+    public void testGet() {
+        SSHUserPrivateKey first = credentials("ssh");
+        stored.add(first);
+        stored.add(credentials("ssh"));
+        stored.add(credentials("other"));
+
+        // the first match wins
+        assertSame(first, SshCredentialsIndex.get("ssh"));
+        assertSame(stored.get(2), SshCredentialsIndex.get("other"));
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    public void testReloadOnCredentialsChange() {
+        SSHUserPrivateKey original = credentials("ssh");
+        stored.add(original);
+        assertSame(original, SshCredentialsIndex.get("ssh"));
+
+        SSHUserPrivateKey updated = credentials("ssh");
+        stored.set(0, updated);
+        assertSame(original, SshCredentialsIndex.get("ssh"));
+
+        // saving other objects leaves the index alone
+        new SshCredentialsIndex.CredentialsChangeListener().onChange(mock(Saveable.class), null);
+        assertSame(original, SshCredentialsIndex.get("ssh"));
+        assertEquals(1, lookups.get());
+
+        new SshCredentialsIndex.CredentialsChangeListener().onChange(mock(SystemCredentialsProvider.class), null);
+        assertSame(updated, SshCredentialsIndex.get("ssh"));
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    public void testReloadWhenOld() {
+        SSHUserPrivateKey original = credentials("ssh");
+        stored.add(original);
+        assertSame(original, SshCredentialsIndex.get("ssh"));
+
+        SSHUserPrivateKey updated = credentials("ssh");
+        stored.set(0, updated);
+        ticker.advance(4, TimeUnit.MINUTES);
+        assertSame(original, SshCredentialsIndex.get("ssh"));
+
+        ticker.advance(2, TimeUnit.MINUTES);
+        assertSame(updated, SshCredentialsIndex.get("ssh"));
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    public void testReloadOnMiss() {
+        assertNull(SshCredentialsIndex.get("ssh"));
+        assertEquals(1, lookups.get());
+
+        // misses right after a reload do not hit the credentials providers again
+        SSHUserPrivateKey added = credentials("ssh");
+        stored.add(added);
+        assertNull(SshCredentialsIndex.get("ssh"));
+        assertEquals(1, lookups.get());
+
+        ticker.advance(31, TimeUnit.SECONDS);
+        assertSame(added, SshCredentialsIndex.get("ssh"));
+        assertEquals(2, lookups.get());
+    }
+
+    private static SSHUserPrivateKey credentials(String id) {
+        SSHUserPrivateKey credentials = mock(SSHUserPrivateKey.class);
+        when(credentials.getId()).thenReturn(id);
+        return credentials;
+    }
+}